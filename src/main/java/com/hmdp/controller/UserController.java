@@ -11,6 +11,7 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -47,6 +48,9 @@ public class UserController {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
     /**
      * 发送手机验证码并保存验证码
      * 请求网址: /user/code?phone=15832165478
@@ -170,6 +174,10 @@ public class UserController {
     // 查对应用户页 with blog
     @GetMapping("/{id}")
     public Result Userinfo(@PathVariable("id") Long userId) {
+        // 一定不存在的用户：不查数据库
+        if (!idBloomFilter.mightContain(IdBloomFilter.USER, userId)) {
+            return Result.ok();
+        }
         // 查询详情
         User user = userService.getById(userId);
         if (user == null) {
@@ -3,12 +3,11 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -26,6 +25,38 @@ public class VoucherOrderController {
 
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) throws InterruptedException {
-        return voucherOrderService.seckillVoucher_v3(voucherId);
+        return voucherOrderService.seckillVoucher(voucherId);
+    }
+
+    /**
+     * 一次买多张秒杀券
+     * @param voucherIds 优惠券id列表
+     * @param mode ALL：有一张不行就都不买；BEST_EFFORT：能买的都买
+     * @return 每张券的订单id或者失败原因
+     */
+    @PostMapping("seckill/batch")
+    public Result seckillVouchers(@RequestBody List<Long> voucherIds,
+                                  @RequestParam(value = "mode", defaultValue = "ALL") String mode) {
+        return voucherOrderService.seckillVouchers(voucherIds, mode);
+    }
+
+    /**
+     * 等候室取号，重复调用可以轮询是否已经放行
+     * @param voucherId 优惠券id
+     * @return 排队号、是否已经放行
+     */
+    @PostMapping("seckill/{id}/ticket")
+    public Result takeSeckillTicket(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.takeSeckillTicket(voucherId);
+    }
+
+    /**
+     * 查询秒杀订单状态：还在排队会挂起等待落库结果（长轮询）
+     * @param orderId 订单id
+     * @return QUEUED / PERSISTED / FAILED
+     */
+    @GetMapping("{id}")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
     }
 }
@@ -52,6 +52,40 @@ public class SeckillVoucher implements Serializable {
      */
     private LocalDateTime endTime;
 
+    /**
+     * Redis库存分片数，为空或不大于1不分片
+     */
+    private Integer stockShards;
+
+    /**
+     * 限流：每秒放行多少请求、桶容量，为空不限流
+     */
+    private Integer rateLimit;
+
+    private Integer rateBurst;
+
+    /**
+     * 单用户限流：每秒请求数、桶容量，为空不限流
+     */
+    private Integer userRateLimit;
+
+    private Integer userRateBurst;
+
+    /**
+     * 是否开启等候室
+     */
+    private Boolean waitingRoom;
+
+    /**
+     * 一人一单结构：set（默认）/ bitmap / intset
+     */
+    private String dedupEncoding;
+
+    /**
+     * 一人一单intset的分片数，建券时按库存算好，之后库存变了也不能变
+     */
+    private Integer dedupShards;
+
     /**
      * 更新时间
      */
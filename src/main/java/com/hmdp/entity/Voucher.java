@@ -78,6 +78,48 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 库存分片数，大于1时Redis库存拆成多个key
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
+    /**
+     * 限流：每秒放行的请求数（整张券），为空不限流
+     */
+    @TableField(exist = false)
+    private Integer rateLimit;
+
+    /**
+     * 限流：令牌桶容量（允许的突发），为空时等于rateLimit
+     */
+    @TableField(exist = false)
+    private Integer rateBurst;
+
+    /**
+     * 限流：每个用户每秒放行的请求数，为空不限流
+     */
+    @TableField(exist = false)
+    private Integer userRateLimit;
+
+    /**
+     * 限流：每个用户的令牌桶容量，为空时等于userRateLimit
+     */
+    @TableField(exist = false)
+    private Integer userRateBurst;
+
+    /**
+     * 是否开启等候室：先排队取号，放行后才能下单
+     */
+    @TableField(exist = false)
+    private Boolean waitingRoom;
+
+    /**
+     * 一人一单的结构：set（默认）、bitmap（按userId置位）、intset（按userId分片的整数集合）
+     */
+    @TableField(exist = false)
+    private String dedupEncoding;
+
     /**
      * 生效时间
      */
@@ -2,6 +2,11 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +18,13 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    int insertIgnore(VoucherOrder order);
+
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
+
+    List<Map<String, Object>> countByVoucher(@Param("voucherIds") Collection<Long> voucherIds);
+
+    List<VoucherOrder> selectUnpaidForUpdate(@Param("ids") Collection<Long> ids);
+
+    int cancelUnpaid(@Param("ids") Collection<Long> ids);
 }
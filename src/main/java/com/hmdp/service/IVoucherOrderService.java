@@ -4,6 +4,11 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -15,6 +20,16 @@ import org.springframework.transaction.annotation.Transactional;
  */
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
+    Result seckillVoucher(Long voucherId) throws InterruptedException;
+
+    Result seckillVoucher_v4(Long voucherId);
+
+    Result seckillVouchers(List<Long> voucherIds, String mode);
+
+    DeferredResult<Result> queryOrderStatus(Long orderId);
+
+    Result takeSeckillTicket(Long voucherId);
+
     Result seckillVoucher_v3(Long voucherId) throws InterruptedException;
 
 
@@ -23,6 +38,14 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     @Transactional
     Result CreateVoucherOrder_v2(VoucherOrder voucherOrder);
 
+    @Transactional
+    int CreateVoucherOrder_batch(List<VoucherOrder> voucherOrders);
+
+    @Transactional
+    Map<Long, Integer> cancelUnpaidOrders(Collection<Long> orderIds);
+
+    void replayJournalOrders(List<VoucherOrder> voucherOrders);
+
 
     Result seckillVoucher_v1(Long voucherId) throws InterruptedException;
 
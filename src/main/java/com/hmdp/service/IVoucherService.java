@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -17,4 +18,12 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    Result addSeckillStock(Long voucherId, Integer amount);
+
+    void preheatSeckillVoucher(SeckillVoucher seckillVoucher, Integer shards);
+
+    void preheatSeckillWindow(SeckillVoucher seckillVoucher);
+
+    void expireSeckillVoucher(Long voucherId);
 }
@@ -15,6 +15,9 @@ import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CachePolicy;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -22,12 +25,13 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -46,12 +50,34 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private BlogMapper blogMapper;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @PostConstruct
+    private void init() {
+        cacheClient.register(CACHE_BLOG_KEY, "blog", CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        cacheClient.enableEarlyRefresh(CACHE_BLOG_KEY);
+    }
+
     @Resource
     private IFollowService followService;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    // 新增的id加入布隆过滤器
+    @Override
+    public boolean save(Blog blog) {
+        boolean saved = super.save(blog);
+        if (saved) {
+            idBloomFilter.add(IdBloomFilter.BLOG, blog.getId());
+        }
+        return saved;
+    }
+
     @Override
     public Result saveBlogWithFeed(Blog blog) {
         // 获取登录用户
@@ -117,8 +143,13 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     @Override
     public Result queryById(Integer id) {
+        // 一定不存在的id：不查数据库
+        if (!idBloomFilter.mightContain(IdBloomFilter.BLOG, id)) {
+            return Result.fail("该Blog不存在");
+        }
         //Blog blog = blogMapper.selectBlogWithUser(id);
-        Blog blog = getById(id);
+        // 每次读出来都是新对象，下面填作者信息不影响缓存
+        Blog blog = cacheClient.get(CACHE_BLOG_KEY, id, Blog.class, this::getById, CachePolicy.MUTEX);
         if (blog == null) {
             return Result.fail("该Blog不存在");
         }
@@ -165,6 +196,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             if (success)
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
         }
+        // 点赞数变了
+        cacheClient.delete(CACHE_BLOG_KEY, id);
         return Result.ok();
     }
 
@@ -1,9 +1,6 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -11,7 +8,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CachePolicy;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.geo.Distance;
@@ -24,11 +23,9 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -49,117 +46,64 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
-    private boolean tryLock(String key) {
-        Boolean b = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        // Boolean取消装箱可能空指针
-        return BooleanUtil.isTrue(b);
-    }
+    @Resource
+    private CacheClient cacheClient;
 
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
-    }
+    @Resource
+    private IdBloomFilter idBloomFilter;
 
-    // 用于重构缓存的线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    @PostConstruct
+    private void init() {
+        cacheClient.register(CACHE_SHOP_KEY, "shop", CACHE_SHOP_TTL, TimeUnit.SECONDS);
+        cacheClient.enableL1(CACHE_SHOP_KEY);
+        cacheClient.enableEarlyRefresh(CACHE_SHOP_KEY);
+    }
 
     /**
      * 根据 id 查询商铺
      * <p>
-     * 先从Redis中取
+     * 先从Redis中取，未命中互斥锁重建，不存在的缓存空值
      *
      * @param id 商铺ID
      * @return 商铺 不存在返回null
      */
     @Override
     public Shop queryByID(Long id) {
-        // 商铺信息以JSON形式存
-        String s = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-        // 如果不为空（查询到了），则转为Shop类型直接返
-        if (StrUtil.isNotBlank(s)) {
-            //log.info("从缓存里面查询到商户！");
-            return JSONUtil.toBean(s, Shop.class);
-        }
-        // 查到了空值：防止穿透
-        if ("".equals(s)) {
+        // 一定不存在的id：不查Redis也不查数据库
+        if (!idBloomFilter.mightContain(IdBloomFilter.SHOP, id)) {
             return null;
         }
-
-        Shop shop;
-        try {
-            boolean lock = tryLock(LOCK_SHOP_KEY + id);
-            if (!lock) {
-                Thread.sleep(50);
-                return queryByID(id);   // 类递归
-            }
-            // 查不到去数据库查
-            shop = this.getById(id);
-            if (shop == null) {
-                // 数据不存在写入Redis：存空值 TTL为两分钟
-                stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            // 查到了先存入Redis再返回
-            String shopJSON = JSONUtil.toJsonStr(shop);
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, shopJSON, CACHE_SHOP_TTL, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            unlock(LOCK_SHOP_KEY + id);
-        }
-
-        return shop;
+        return cacheClient.get(CACHE_SHOP_KEY, id, Shop.class, this::getById, CachePolicy.MUTEX);
     }
 
-    // 逻辑删除版本
+    // 逻辑过期版本：和 queryByID 用同一个key，二选一，需要先 saveShop2Redis(id) 预热
     public Shop queryByID2(Long id) {
-        // 商铺信息以JSON形式存
-        String s = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-        // 空：未命中 或者 空值：防止穿透
-        if (StrUtil.isBlank(s) || s.isEmpty()) {
+        if (!idBloomFilter.mightContain(IdBloomFilter.SHOP, id)) {
             return null;
         }
-        RedisData redisData = JSONUtil.toBean(s, RedisData.class);
-        // data是以json格式存 得用(JSONObject)转，之后再转成Shop
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        if (LocalDateTime.now().isBefore(expireTime)) {
-            return shop;    // 未过期
-        }
-        // 过期 则取锁重建缓存
-        boolean lock = tryLock(LOCK_SHOP_KEY + id);
-        if (lock) {
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                Shop shopNew;
-                try {
-                    shopNew = this.saveShop2Redis(id, LOCK_SHOP_TTL);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unlock(LOCK_SHOP_KEY + id);
-                }
-                return shopNew;    // 重建完毕，返回商铺信息（最新的）
-            });
-        }
-        // 未获取到锁，直接放回商铺信息（过期的）
-        return shop;
+        return cacheClient.get(CACHE_SHOP_KEY, id, Shop.class, this::getById, CachePolicy.LOGICAL_EXPIRE);
     }
 
-    // 查数据，不存在存入空值返回false；将数据封装在redisData设置逻辑ttl，然后缓存
-    public Shop saveShop2Redis(Long id, Long ttl) {
+    // 预热：查数据库写入逻辑过期的缓存，不存在的写空值
+    public Shop saveShop2Redis(Long id) {
         Shop shop = this.getById(id);
-        if (shop == null) {
-            // 数据不存在写入Redis：存空值 TTL为两分钟
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        RedisData redisData = new RedisData();
-        redisData.setData(JSONUtil.toJsonStr(shop));
-        redisData.setData(LocalDateTime.now().plusSeconds(ttl)); // 逻辑过期时间
-        // 没设置过期时间
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY, id, shop);
         return shop;
     }
 
+    /**
+     * 新增商铺：加入布隆过滤器，清掉之前可能缓存的空值
+     */
+    @Override
+    public boolean save(Shop shop) {
+        boolean saved = super.save(shop);
+        if (saved) {
+            idBloomFilter.add(IdBloomFilter.SHOP, shop.getId());
+            cacheClient.delete(CACHE_SHOP_KEY, shop.getId());
+        }
+        return saved;
+    }
+
     /**
      * 实现双写一致
      * 更新时删除缓存：先操作数据库再删除缓存
@@ -173,7 +117,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (shop.getId() == null)
             return false;
         updateById(shop);
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        cacheClient.delete(CACHE_SHOP_KEY, shop.getId());
         return true;
     }
 
@@ -7,6 +7,7 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.connection.BitFieldSubCommands;
@@ -35,6 +36,19 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    // 新增的id加入布隆过滤器
+    @Override
+    public boolean save(User user) {
+        boolean saved = super.save(user);
+        if (saved) {
+            idBloomFilter.add(IdBloomFilter.USER, user.getId());
+        }
+        return saved;
+    }
+
     @Override
     public User register(String phone) {
         User user = new User();
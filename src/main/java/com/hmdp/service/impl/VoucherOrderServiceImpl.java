@@ -6,33 +6,59 @@ import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderRingBuffer;
 import com.hmdp.utils.RedisIDWorker;
+import com.hmdp.utils.SeckillStockLease;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -48,6 +74,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedisIDWorker redisIDWorker;
 
+    @Resource
+    private SeckillStockLease seckillStockLease;
+
     @Resource
     private RedissonClient redissonClient;
 
@@ -57,15 +86,13 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
-    // 导入秒杀Lua脚本
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT_V2;
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
 
-    static {
-        SECKILL_SCRIPT_V2 = new DefaultRedisScript<>();
-        SECKILL_SCRIPT_V2.setLocation(new ClassPathResource("lua/seckill_v2.lua"));
-        SECKILL_SCRIPT_V2.setResultType(Long.class);
-    }
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
 
+    // 导入秒杀Lua脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT_V3;
 
     static {
@@ -74,57 +101,610 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT_V3.setResultType(Long.class);
     }
 
-    // 这里是不能注入：循环依赖
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT_V4;
+
+    static {
+        SECKILL_SCRIPT_V4 = new DefaultRedisScript<>();
+        SECKILL_SCRIPT_V4.setLocation(new ClassPathResource("lua/seckill_v4.lua"));
+        SECKILL_SCRIPT_V4.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<List> SECKILL_MULTI_SCRIPT;
+
+    static {
+        SECKILL_MULTI_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_MULTI_SCRIPT.setLocation(new ClassPathResource("lua/seckill_multi.lua"));
+        SECKILL_MULTI_SCRIPT.setResultType(List.class);
+    }
+
+    private static final DefaultRedisScript<Long> SECKILL_TICKET_SCRIPT;
+
+    static {
+        SECKILL_TICKET_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_TICKET_SCRIPT.setLocation(new ClassPathResource("lua/seckill_ticket.lua"));
+        SECKILL_TICKET_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> SECKILL_ROLLBACK_SCRIPT;
+
+    static {
+        SECKILL_ROLLBACK_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_ROLLBACK_SCRIPT.setLocation(new ClassPathResource("lua/seckill_rollback.lua"));
+        SECKILL_ROLLBACK_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> RETURN_STOCK_SCRIPT;
+
+    static {
+        RETURN_STOCK_SCRIPT = new DefaultRedisScript<>();
+        RETURN_STOCK_SCRIPT.setLocation(new ClassPathResource("lua/seckill_return_stock.lua"));
+        RETURN_STOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> JOURNAL_REPLAY_SCRIPT;
+
+    static {
+        JOURNAL_REPLAY_SCRIPT = new DefaultRedisScript<>();
+        JOURNAL_REPLAY_SCRIPT.setLocation(new ClassPathResource("lua/seckill_journal_replay.lua"));
+        JOURNAL_REPLAY_SCRIPT.setResultType(Long.class);
+    }
+
+    // 直接注入是循环依赖，用@Lazy注入代理对象
+    // 消费线程启动时就要处理pending-list，这时还没有请求进来，拿不到AopContext.currentProxy()
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
+    // 下单消息放在哪：stream（Redis Stream，v4）；blocking（本地阻塞队列，v2）；ring（本地环形队列，v2）
+    // 本地队列模式不启动Stream消费者，适合没有Redis Stream的节点，进程挂了队列里的订单会丢
+    @Value("${hmdp.order.queue:stream}")
+    private String orderQueue;
+
     // 单机阻塞队列
     private final BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 
-    // 异步执行下单线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    // 单机环形队列：槽位预分配，入队不创建对象
+    private OrderRingBuffer orderRing;
+
+    @Value("${hmdp.order.ring.size:1048576}")
+    private int ringSize;
+
+    // 多个Tomcat线程同时入队，只有确定只有一个线程入队时才能用单生产者
+    @Value("${hmdp.order.ring.multi-producer:true}")
+    private boolean ringMultiProducer;
+
+    @Value("${hmdp.order.ring.wait-strategy:SLEEPING}")
+    private String ringWaitStrategy;
+
+    // 本地队列一次取多少个落库
+    @Value("${hmdp.order.local-batch-size:256}")
+    private int localBatchSize;
+
+    // 异步执行下单线程池：每个分区一个消费者线程
+    private ExecutorService SECKILL_ORDER_EXECUTOR;
+
+    private static final String queueName = "stream.orders";
+
+    // 订单流分区数（同时也是本节点的消费者线程数），1表示只有stream.orders一个流（原逻辑）
+    @Value("${hmdp.order.partitions:1}")
+    private int partitions;
+
+    // 分区依据：user 按用户ID哈希（保证同一用户的订单有序），voucher 按优惠券ID哈希
+    @Value("${hmdp.order.partition-key:user}")
+    private String partitionKey;
+
+    // 本地售罄标记：优惠券id -> 标记失效时间
+    // 标记期间直接拒绝，不生成ID也不调Lua；过期后放一个请求去Redis确认，防止补货广播丢失后一直卖不出去
+    private final Map<Long, Long> soldOutVouchers = new ConcurrentHashMap<>();
+
+    @Value("${hmdp.seckill.sold-out-ttl-ms:60000}")
+    private long soldOutTtlMs;
+
+    private boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOutVouchers.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOutVouchers.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    private void markSoldOut(Long voucherId) {
+        soldOutVouchers.put(voucherId, System.currentTimeMillis() + soldOutTtlMs);
+    }
+
+    // 死信流：投递次数超限的消息
+    private static final String DEAD_LETTER_QUEUE = "stream.orders.dlq";
+
+    // 本地队列模式：一批订单落库失败重试几次、每次间隔（毫秒，按次数递增）
+    private static final int LOCAL_RETRIES = 3;
+    private static final long LOCAL_RETRY_MS = 500;
+
+    // 超过这个投递次数就转入死信
+    @Value("${hmdp.order.max-deliveries:5}")
+    private long maxDeliveries;
+
+    // pending消息空闲超过这个时间才重试/认领：消费者挂了，或者处理失败没有ACK
+    @Value("${hmdp.order.claim-idle-ms:30000}")
+    private long claimIdleMs;
+
+    @Value("${hmdp.order.recover-interval-ms:5000}")
+    private long recoverIntervalMs;
+
+    // XADD时的近似长度上限（MAXLEN ~），只是兜底，正常由MINID定时裁剪
+    @Value("${hmdp.order.stream-max-len:1000000}")
+    private long streamMaxLen;
+
+    // 准入控制：消费积压超过这个值，秒杀请求直接失败，0表示不限制
+    @Value("${hmdp.order.max-lag:0}")
+    private long maxLag;
+
+    // 积压指标刷新间隔，准入控制用的就是这个值
+    @Value("${hmdp.order.lag-refresh-ms:1000}")
+    private long lagRefreshMs;
+
+    // pending-list恢复和指标刷新，和消费线程并行
+    private final ScheduledExecutorService PENDING_RECOVERY_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    // 本节点每个分区的消费者名
+    private String[] consumerNames;
+
+    // 指标：每个流的积压（还没投递的消息数）和pending数
+    private final Map<String, AtomicLong> streamBacklogs = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> streamPendings = new ConcurrentHashMap<>();
+    private final AtomicLong deadLetters = new AtomicLong();
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 订单状态：Lua脚本写QUEUED，消费者落库后改成PERSISTED或者FAILED
+    private static final String ORDER_QUEUED = "QUEUED";
+    private static final String ORDER_PERSISTED = "PERSISTED";
+    private static final String ORDER_FAILED = "FAILED";
+
+    // 订单状态缓存多久，超过这个时间查数据库
+    @Value("${hmdp.order.status-ttl-seconds:600}")
+    private long statusTtlSeconds;
+
+    // 长轮询最多挂起多久
+    @Value("${hmdp.order.status-wait-ms:10000}")
+    private long statusWaitMs;
+
+    // 支付超时时间，超时未支付自动取消，0表示不取消
+    @Value("${hmdp.order.pay-timeout-seconds:0}")
+    private long payTimeoutSeconds;
+
+    // 一次最多买几张券
+    @Value("${hmdp.seckill.multi-max:20}")
+    private int multiMax;
+
+    // 等候室放号上限：排队未放行人数 < 剩余库存 × overbook
+    @Value("${hmdp.room.overbook:2}")
+    private int roomOverbook;
+
+    // 等待订单状态变化的长轮询请求：orderId -> 挂起的请求
+    private final Map<Long, Set<DeferredResult<Result>>> statusWaiters = new ConcurrentHashMap<>();
 
     //创建线程任务，秒杀业务需要在类初始化之后，就立即执行，所以这里需要用到@PostConstruct注解
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        // 订阅售罄/补货广播，其他节点卖完了本节点也不用再去Redis
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> markSoldOut(Long.valueOf(new String(message.getBody()))),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> soldOutVouchers.remove(Long.valueOf(new String(message.getBody()))),
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+        // 订阅订单状态变化，唤醒本节点挂起的长轮询
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onOrderStatus(new String(message.getBody())),
+                new ChannelTopic(SECKILL_ORDER_STATUS_CHANNEL));
+
+        // 本地队列模式：起一个本地消费线程，不用Stream
+        if (!"stream".equals(orderQueue)) {
+            SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+            if ("ring".equals(orderQueue)) {
+                orderRing = new OrderRingBuffer(ringSize, ringMultiProducer,
+                        OrderRingBuffer.WaitStrategy.valueOf(ringWaitStrategy));
+                SECKILL_ORDER_EXECUTOR.submit(this::consumeRing);
+            } else {
+                SECKILL_ORDER_EXECUTOR.submit(this::consumeBlockingQueue);
+            }
+            return;
+        }
+
+        // 消费者名：主机名 + 分区号，重启后名字不变，才能找回自己的pending-list
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        SECKILL_ORDER_EXECUTOR = Executors.newFixedThreadPool(partitions);
+        consumerNames = new String[partitions];
+        for (int i = 0; i < partitions; i++) {
+            String streamKey = streamKey(i);
+            consumerNames[i] = host + "-c" + i;
+            createGroupIfAbsent(streamKey);
+            Tags tags = Tags.of("stream", streamKey);
+            meterRegistry.gauge("seckill.stream.backlog", tags,
+                    streamBacklogs.computeIfAbsent(streamKey, k -> new AtomicLong()));
+            meterRegistry.gauge("seckill.stream.pending", tags,
+                    streamPendings.computeIfAbsent(streamKey, k -> new AtomicLong()));
+            SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler(streamKey, consumerNames[i]));
+        }
+        meterRegistry.gauge("seckill.stream.dead-letter", deadLetters);
+        meterRegistry.gauge("seckill.stream.max-lag", this, o -> o.maxLag);
+        PENDING_RECOVERY_EXECUTOR.scheduleWithFixedDelay(this::recoverPending,
+                recoverIntervalMs, recoverIntervalMs, TimeUnit.MILLISECONDS);
+        PENDING_RECOVERY_EXECUTOR.scheduleWithFixedDelay(this::refreshStreamMetrics,
+                lagRefreshMs, lagRefreshMs, TimeUnit.MILLISECONDS);
     }
 
-    private static final String queueName = "stream.orders";
+    // 本地环形队列消费：一次取走所有已入队的（最多localBatchSize个），一个事务落库
+    private void consumeRing() {
+        List<VoucherOrder> orders = new ArrayList<>(localBatchSize);
+        OrderRingBuffer.SlotHandler collector = (orderId, userId, voucherId) -> {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(orderId);
+            voucherOrder.setUserId(userId);
+            voucherOrder.setVoucherId(voucherId);
+            orders.add(voucherOrder);
+        };
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (orderRing.drain(collector, localBatchSize, 2, TimeUnit.SECONDS) > 0) {
+                    handleLocalOrders(orders);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("本地队列：订单处理异常", e);
+            } finally {
+                orders.clear();
+            }
+        }
+    }
+
+    // 本地阻塞队列消费：take一个，再顺手drain一批
+    private void consumeBlockingQueue() {
+        List<VoucherOrder> orders = new ArrayList<>(localBatchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                orders.add(orderTasks.take());
+                orderTasks.drainTo(orders, localBatchSize - 1);
+                handleLocalOrders(orders);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("本地队列：订单处理异常", e);
+            } finally {
+                orders.clear();
+            }
+        }
+    }
+
+    // 本地队列取出的一批订单落库：出队后就只有这一份，失败了重试几次，还不行写进死信流，不能清掉了事
+    private void handleLocalOrders(List<VoucherOrder> orders) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                handleVoucherOrders(orders);
+                return;
+            } catch (Exception e) {
+                if (attempt >= LOCAL_RETRIES) {
+                    log.error("本地队列：订单处理失败{}次，转入死信", attempt, e);
+                    moveToDeadLetter(orders);
+                    return;
+                }
+                log.warn("本地队列：订单处理失败，第{}次重试", attempt, e);
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(LOCAL_RETRY_MS * attempt);
+            } catch (InterruptedException e) {
+                // 停机：没处理完的也写进死信
+                Thread.currentThread().interrupt();
+                moveToDeadLetter(orders);
+                return;
+            }
+        }
+    }
+
+    // 准入控制：目标分区积压过多就快速失败，不再往流里加消息
+    private boolean isOverloaded(String streamKey) {
+        if (maxLag <= 0) {
+            return false;
+        }
+        AtomicLong backlog = streamBacklogs.get(streamKey);
+        return backlog != null && backlog.get() > maxLag;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        SECKILL_ORDER_EXECUTOR.shutdownNow();
+        PENDING_RECOVERY_EXECUTOR.shutdownNow();
+    }
+
+    // 定时任务：每个分区恢复pending消息、裁剪已经消费完的消息
+    private void recoverPending() {
+        for (int i = 0; i < partitions; i++) {
+            String streamKey = streamKey(i);
+            try {
+                recoverPending(streamKey, consumerNames[i]);
+                trimStream(streamKey);
+            } catch (Exception e) {
+                log.error("pending-list恢复异常: {}", streamKey, e);
+            }
+        }
+    }
+
+    // 定时任务：刷新每个分区的积压指标
+    private void refreshStreamMetrics() {
+        for (int i = 0; i < partitions; i++) {
+            String streamKey = streamKey(i);
+            try {
+                refreshStreamMetrics(streamKey);
+            } catch (Exception e) {
+                log.error("刷新消息队列指标异常: {}", streamKey, e);
+            }
+        }
+    }
+
+    /**
+     * 裁剪已经ACK的消息：XTRIM stream MINID ~ id（Redis 6.2+）
+     * id取 最早的pending消息 和 组的last-delivered-id 中较小的，还没投递或者没ACK的消息都不会被裁掉
+     */
+    private void trimStream(String streamKey) {
+        String minId = null;
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        for (int i = 0; i < groups.groupCount(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            if ("g1".equals(group.groupName())) {
+                minId = group.lastDeliveredId();
+            }
+        }
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, "g1");
+        if (summary != null && summary.getTotalPendingMessages() > 0) {
+            minId = summary.minMessageId();
+        }
+        if (minId == null || "0-0".equals(minId)) {
+            return;
+        }
+        byte[][] args = {streamKey.getBytes(), "MINID".getBytes(), "~".getBytes(), minId.getBytes()};
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM", args));
+    }
+
+    /**
+     * 扫描整个组的pending-list（不只是自己的）：XPENDING stream g1 - + 100
+     * 空闲超过claimIdleMs的消息：投递次数超限转入死信，否则XCLAIM到本节点重试
+     * 其他节点挂掉留下的消息也会被认领
+     */
+    private void recoverPending(String streamKey, String consumerName) {
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                .pending(streamKey, "g1", Range.unbounded(), 100);
+        for (PendingMessage pendingMessage : pendingMessages) {
+            if (pendingMessage.getElapsedTimeSinceLastDelivery().toMillis() < claimIdleMs) {
+                continue;
+            }
+            if (pendingMessage.getTotalDeliveryCount() >= maxDeliveries) {
+                moveToDeadLetter(streamKey, pendingMessage.getId());
+                continue;
+            }
+            // XCLAIM会把投递次数+1，一直失败的消息最终会进死信
+            List<MapRecord<String, Object, Object>> records = claim(streamKey, consumerName, pendingMessage.getId());
+            for (MapRecord<String, Object, Object> record : records) {
+                try {
+                    handleRecord(record.getValue());
+                    stringRedisTemplate.opsForStream().acknowledge(streamKey, "g1", record.getId());
+                } catch (Exception e) {
+                    log.warn("pending消息重试失败: {} 已投递{}次", record.getId(), pendingMessage.getTotalDeliveryCount(), e);
+                }
+            }
+        }
+    }
+
+    // XCLAIM stream g1 consumer min-idle id：StreamOperations 2.6 没有claim，走连接的streamCommands
+    // 空闲时间不够（刚被别的节点认领过）的消息不会返回
+    private List<MapRecord<String, Object, Object>> claim(String streamKey, String consumerName, RecordId recordId) {
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(streamKey.getBytes(StandardCharsets.UTF_8), "g1", consumerName,
+                        RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(claimIdleMs)).ids(recordId)));
+        if (claimed == null) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> records = new ArrayList<>(claimed.size());
+        for (ByteRecord record : claimed) {
+            MapRecord<String, String, String> deserialized = record.deserialize(StringRedisSerializer.UTF_8);
+            records.add(StreamRecords.newRecord().in(streamKey).withId(deserialized.getId())
+                    .ofMap(new HashMap<Object, Object>(deserialized.getValue())));
+        }
+        return records;
+    }
+
+    // 本地队列的订单写入死信流（格式和流里的单条订单消息一样），订单状态改成FAILED
+    private void moveToDeadLetter(List<VoucherOrder> orders) {
+        Map<Long, String> statuses = new HashMap<>(orders.size());
+        try {
+            for (VoucherOrder voucherOrder : orders) {
+                Map<String, String> value = new HashMap<>(4);
+                value.put("userId", voucherOrder.getUserId().toString());
+                value.put("voucherId", voucherOrder.getVoucherId().toString());
+                value.put("id", voucherOrder.getId().toString());
+                value.put("source", "local");
+                stringRedisTemplate.opsForStream().add(DEAD_LETTER_QUEUE, value);
+                statuses.put(voucherOrder.getId(), ORDER_FAILED);
+            }
+            publishOrderStatus(statuses);
+        } catch (Exception e) {
+            // 最后的办法：日志里留下订单，人工补
+            log.error("本地队列：写死信失败，订单: {}", orders, e);
+        }
+    }
+
+    // 原消息加上来源写入死信流，再ACK掉，订单状态改成FAILED
+    private void moveToDeadLetter(String streamKey, RecordId recordId) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(streamKey, Range.closed(recordId.getValue(), recordId.getValue()));
+        if (records != null && !records.isEmpty()) {
+            Map<Object, Object> value = new HashMap<>(records.get(0).getValue());
+            value.put("source", streamKey);
+            value.put("sourceId", recordId.getValue());
+            stringRedisTemplate.opsForStream().add(DEAD_LETTER_QUEUE, value);
+            Map<Long, String> statuses = new HashMap<>();
+            for (VoucherOrder voucherOrder : parseOrders(records.get(0).getValue())) {
+                statuses.put(voucherOrder.getId(), ORDER_FAILED);
+            }
+            publishOrderStatus(statuses);
+        }
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, "g1", recordId);
+        log.error("订单消息投递次数超过{}次，转入死信: {} {}", maxDeliveries, streamKey, recordId);
+    }
+
+    // 积压用XINFO GROUPS的lag（Redis 7+），低版本没有lag字段，退化成XLEN（有MINID裁剪，XLEN约等于pending+未投递）
+    private void refreshStreamMetrics(String streamKey) {
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, "g1");
+        streamPendings.get(streamKey).set(summary == null ? 0 : summary.getTotalPendingMessages());
+
+        Long backlog = null;
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        for (int i = 0; i < groups.groupCount(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            Object lag = group.getRaw().get("lag");
+            if ("g1".equals(group.groupName()) && lag instanceof Number) {
+                backlog = ((Number) lag).longValue();
+            }
+        }
+        if (backlog == null) {
+            backlog = stringRedisTemplate.opsForStream().size(streamKey);
+        }
+        streamBacklogs.get(streamKey).set(backlog == null ? 0 : backlog);
+
+        Long dlqSize = stringRedisTemplate.opsForStream().size(DEAD_LETTER_QUEUE);
+        deadLetters.set(dlqSize == null ? 0 : dlqSize);
+    }
+
+    // 分区对应的流：只有一个分区时沿用stream.orders
+    private String streamKey(int partition) {
+        return partitions == 1 ? queueName : queueName + ":" + partition;
+    }
+
+    // 按用户或优惠券哈希选分区
+    private String streamKeyOf(Long voucherId, Long userId) {
+        Long key = "voucher".equals(partitionKey) ? voucherId : userId;
+        return streamKey(Math.floorMod(key.hashCode(), partitions));
+    }
+
+    // XGROUP CREATE key g1 0 MKSTREAM，已经存在会报BUSYGROUP，忽略即可
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.opsForStream().createGroup(streamKey, ReadOffset.from("0"), "g1");
+        } catch (Exception e) {
+            log.debug("消费者组已存在: {}", streamKey);
+        }
+    }
+
+    // 批量消费：每次XREADGROUP最多拉取的条数，1表示逐条处理（原逻辑）
+    @Value("${hmdp.order.batch-size:1}")
+    private int batchSize;
+
+    // 批量消费：拿到第一条消息后最多再等多久凑批（毫秒）
+    @Value("${hmdp.order.batch-linger-ms:50}")
+    private long batchLingerMs;
 
     private class VoucherOrderHandler implements Runnable {
+        // 负责的流（分区）
+        private final String streamKey;
+        // 在g1组中的消费者名
+        private final String consumerName;
+
+        VoucherOrderHandler(String streamKey, String consumerName) {
+            this.streamKey = streamKey;
+            this.consumerName = consumerName;
+        }
+
         // 版本三：从消息队列中拉取消息
         @Override
         public void run() {
+            // 启动时先处理自己上次没ACK的消息
+            handlePendingList();
+            if (batchSize > 1) {
+                runBatch();
+                return;
+            }
             while (true) {
                 try {
                     // 感觉不如lua脚本
                     // 获取队列消息
                     // XREADGROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.order >
                     List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().
-                            read(Consumer.from("g1", "c1"),
+                            read(Consumer.from("g1", consumerName),
                                     StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
                                     // ReadOffset.lastConsumed()底层就是 '>'
-                                    StreamOffset.create(queueName, ReadOffset.lastConsumed()));
+                                    StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
                     // 判断有无消息
                     if (records == null || records.isEmpty()) {
                         continue;
                     }
-                    // 获取成功，转成对象
+                    // 获取成功
                     MapRecord<String, Object, Object> record = records.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 执行下单逻辑
-                    handleVoucherOrder(voucherOrder);
+                    // 转成订单，执行下单逻辑
+                    handleRecord(record.getValue());
                     // 手动ACK: SACK stream.order g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    stringRedisTemplate.opsForStream().acknowledge(streamKey, "g1", record.getId());
 
                     log.info("消息队列成功处理一条消息");
                 } catch (Exception e) {
                     log.error("消息队列：订单处理异常", e);
-                    // 没有ACK 放到PENDINGLIST中了
-                    handlePendingList();
+                    // 没有ACK 放到PENDINGLIST中了，由恢复线程重试，不阻塞新订单
+                }
+            }
+        }
+
+        // 批量版本：一次读N条，一个事务落库，一次XACK
+        private void runBatch() {
+            while (true) {
+                try {
+                    List<MapRecord<String, Object, Object>> records = readBatch();
+                    if (records.isEmpty()) {
+                        continue;
+                    }
+                    handleVoucherOrderBatch(streamKey, records);
+                    log.info("消息队列成功处理{}条消息", records.size());
+                } catch (Exception e) {
+                    log.error("消息队列：批量订单处理异常", e);
+                }
+            }
+        }
+
+        // 攒批：最多batchSize条，第一条到达后最多再等batchLingerMs
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+            long deadline = 0;
+            while (batch.size() < batchSize) {
+                Duration block = Duration.ofSeconds(2);
+                if (!batch.isEmpty()) {
+                    long remain = deadline - System.currentTimeMillis();
+                    // 注意BLOCK 0是永久阻塞，等待时间用完直接返回
+                    if (remain <= 0) {
+                        break;
+                    }
+                    block = Duration.ofMillis(remain);
+                }
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().
+                        read(Consumer.from("g1", consumerName),
+                                StreamReadOptions.empty().count(batchSize - batch.size()).block(block),
+                                StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
+                if (records == null || records.isEmpty()) {
+                    break;
+                }
+                if (batch.isEmpty()) {
+                    deadline = System.currentTimeMillis() + batchLingerMs;
                 }
+                batch.addAll(records);
             }
+            return batch;
         }
 
         private void handlePendingList() {
@@ -132,9 +712,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 try {
                     //1. 获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders 0
                     List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
+                            Consumer.from("g1", consumerName),
                             StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0")));
+                            StreamOffset.create(streamKey, ReadOffset.from("0")));
                     //2. 判断pending-list中是否有未处理消息
                     if (records == null || records.isEmpty()) {
                         //如果没有就说明没有异常消息，直接结束循环
@@ -142,20 +722,14 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     }
                     //3. 消息获取成功之后，我们需要将其转为对象
                     MapRecord<String, Object, Object> record = records.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
                     //4. 获取成功，执行下单逻辑，将数据保存到数据库中
-                    handleVoucherOrder(voucherOrder);
+                    handleRecord(record.getValue());
                     //5. 手动ACK，SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    stringRedisTemplate.opsForStream().acknowledge(streamKey, "g1", record.getId());
                 } catch (Exception e) {
-                    log.info("处理pending-list异常");
-                    //如果怕异常多次出现，可以在这里休眠一会儿
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
+                    // 处理不了的消息留在pending-list里，交给恢复线程按投递次数重试或者转入死信
+                    log.warn("处理pending-list异常，交给恢复线程", e);
+                    break;
                 }
             }
         }
@@ -176,22 +750,443 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         //}
     }
 
+    // 一条消息转成订单：单券消息 userId/voucherId/id；多券消息 userId/orders=voucherId:orderId,...
+    private List<VoucherOrder> parseOrders(Map<Object, Object> value) {
+        Object orders = value.get("orders");
+        if (orders == null) {
+            return Collections.singletonList(BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true));
+        }
+        Long userId = Long.valueOf(value.get("userId").toString());
+        List<VoucherOrder> result = new ArrayList<>();
+        for (String order : orders.toString().split(",")) {
+            int index = order.indexOf(':');
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setUserId(userId);
+            voucherOrder.setVoucherId(Long.valueOf(order.substring(0, index)));
+            voucherOrder.setId(Long.valueOf(order.substring(index + 1)));
+            result.add(voucherOrder);
+        }
+        return result;
+    }
+
+    // 处理一条消息：多券消息的订单在一个事务里落库
+    private void handleRecord(Map<Object, Object> value) {
+        List<VoucherOrder> orders = parseOrders(value);
+        if (orders.size() == 1) {
+            handleVoucherOrder(orders.get(0));
+        } else {
+            handleVoucherOrders(orders);
+        }
+    }
+
     // 异步线程 - 创建订单
+    // 一人一单由Lua脚本和(user_id, voucher_id)唯一索引保证，这里不再加用户锁
     private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        // 创建锁对象，作为兜底方案
-        RLock redisLock = redissonClient.getLock("order" + userId);
-        boolean isLock = redisLock.tryLock();
-        if (!isLock) {
-            log.error("不允许重复下单");
+        // 得使用代理对象，因为是另一个线程
+        Result result = proxy.CreateVoucherOrder_v2(voucherOrder);
+        // 插入被忽略可能是重放（同一个订单已经落库），也可能是真的重复下单
+        boolean inserted = Boolean.TRUE.equals(result.getSuccess());
+        boolean persisted = inserted || getById(voucherOrder.getId()) != null;
+        publishOrderStatus(Collections.singletonMap(voucherOrder.getId(), persisted ? ORDER_PERSISTED : ORDER_FAILED),
+                inserted ? 1 : 0, inserted ? Collections.singleton(voucherOrder.getId()) : Collections.emptySet());
+    }
+
+
+    // 异步线程 - 批量创建订单，批量失败则退回逐条处理（逐条逻辑自带一人一单判断）
+    private void handleVoucherOrderBatch(String streamKey, List<MapRecord<String, Object, Object>> records) {
+        // 批内去重：同一个(userId, voucherId)只保留第一条，去掉的订单不会落库，状态直接改成FAILED
+        // 去掉的订单在Redis里也扣过库存，ACK之后还回去；一人一单不动，用户还有保留下来的那一单
+        Map<String, VoucherOrder> orders = new LinkedHashMap<>(records.size());
+        Map<Long, String> dropped = new HashMap<>();
+        Map<Long, Integer> droppedStocks = new HashMap<>();
+        RecordId[] recordIds = new RecordId[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            MapRecord<String, Object, Object> record = records.get(i);
+            recordIds[i] = record.getId();
+            for (VoucherOrder voucherOrder : parseOrders(record.getValue())) {
+                VoucherOrder kept = orders.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+                if (kept != null && !kept.getId().equals(voucherOrder.getId())
+                        && dropped.put(voucherOrder.getId(), ORDER_FAILED) == null) {
+                    droppedStocks.merge(voucherOrder.getVoucherId(), 1, Integer::sum);
+                }
+            }
+        }
+        handleVoucherOrders(orders.values());
+        if (!dropped.isEmpty()) {
+            publishOrderStatus(dropped);
+        }
+        // 整批一次ACK: XACK stream.orders g1 id1 id2 ...
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, "g1", recordIds);
+        // ACK之后再还：ACK之前挂了整批会重投，库存就还了两次；ACK之后挂了少还的由库存对账发现
+        droppedStocks.forEach((voucherId, n) -> {
+            Long returned = stringRedisTemplate.execute(RETURN_STOCK_SCRIPT, Collections.emptyList(),
+                    voucherId.toString(), n.toString());
+            if (returned != null && returned == 1) {
+                stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+            }
+        });
+    }
+
+    // 一组订单一个事务落库，失败则退回逐条处理（逐条逻辑自带一人一单判断）
+    private void handleVoucherOrders(Collection<VoucherOrder> orders) {
+        try {
+            int inserted = proxy.CreateVoucherOrder_batch(new ArrayList<>(orders));
+            Set<Long> orderIds = orders.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            // 有插入被忽略的：查一次哪些订单真的在库里
+            Set<Long> persisted = inserted == orderIds.size() ? orderIds
+                    : query().select("id").in("id", orderIds).list().stream()
+                    .map(VoucherOrder::getId).collect(Collectors.toSet());
+            Map<Long, String> statuses = new HashMap<>(orderIds.size());
+            for (Long orderId : orderIds) {
+                statuses.put(orderId, persisted.contains(orderId) ? ORDER_PERSISTED : ORDER_FAILED);
+            }
+            // 全部被忽略是整批重放，不用再登记；部分被忽略分不清哪些是新插入的，登记时NX不会推迟已有的截止时间
+            publishOrderStatus(statuses, inserted, inserted == 0 ? Collections.emptySet() : persisted);
+        } catch (Exception e) {
+            log.warn("批量下单失败，退回逐条处理", e);
+            for (VoucherOrder voucherOrder : orders) {
+                handleVoucherOrder(voucherOrder);
+            }
+        }
+    }
+
+
+    /**
+     * 回放本地订单日志里的订单：批量落库，再用一个脚本补上Redis里的一人一单和租约计数，最后发布订单状态
+     * 中途失败整批重来：重复插入会被忽略，脚本按订单id去重
+     * 批量落库失败（某张券数据库库存不足）退回逐条处理，落不了库的订单标记失败、库存还给Redis，不会卡住后面的日志
+     *
+     * @param voucherOrders Redis不可用期间用本地租约卖出的订单
+     */
+    @Override
+    public void replayJournalOrders(List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
             return;
         }
+        Set<Long> orderIds = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        Set<Long> persisted;
+        // 这一轮真正插入的订单数、要登记支付截止时间的订单
+        long inserted;
+        Set<Long> scheduled;
         try {
-            // 得使用代理对象，因为是另一个线程
-            proxy.CreateVoucherOrder_v2(voucherOrder);
-        } finally {
-            redisLock.unlock();
+            inserted = proxy.CreateVoucherOrder_batch(voucherOrders);
+            persisted = inserted == orderIds.size() ? orderIds
+                    : query().select("id").in("id", orderIds).list().stream()
+                    .map(VoucherOrder::getId).collect(Collectors.toSet());
+            scheduled = inserted == 0 ? Collections.emptySet() : persisted;
+        } catch (Exception e) {
+            log.warn("批量回放订单日志失败，退回逐条处理", e);
+            persisted = new HashSet<>(orderIds.size());
+            scheduled = new HashSet<>(orderIds.size());
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                // 逐条失败（数据库不可用）直接抛出，下一轮整批重来
+                Result result = proxy.CreateVoucherOrder_v2(voucherOrder);
+                if (Boolean.TRUE.equals(result.getSuccess())) {
+                    scheduled.add(voucherOrder.getId());
+                }
+                if (Boolean.TRUE.equals(result.getSuccess()) || getById(voucherOrder.getId()) != null) {
+                    persisted.add(voucherOrder.getId());
+                }
+            }
+            inserted = scheduled.size();
+        }
+        List<String> args = new ArrayList<>(voucherOrders.size() * 4);
+        Map<Long, String> statuses = new HashMap<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            boolean ok = persisted.contains(voucherOrder.getId());
+            args.add(voucherOrder.getId().toString());
+            args.add(voucherOrder.getUserId().toString());
+            args.add(voucherOrder.getVoucherId().toString());
+            args.add(ok ? "1" : "0");
+            statuses.put(voucherOrder.getId(), ok ? ORDER_PERSISTED : ORDER_FAILED);
+        }
+        stringRedisTemplate.execute(JOURNAL_REPLAY_SCRIPT, Collections.emptyList(), args.toArray());
+        publishOrderStatus(statuses, inserted, scheduled);
+    }
+
+    // 只改状态（没有新落库的订单）
+    private void publishOrderStatus(Map<Long, String> statuses) {
+        publishOrderStatus(statuses, 0, Collections.emptySet());
+    }
+
+    /**
+     * 更新订单状态缓存并广播，一次管道
+     * 重放的订单只更新状态：新插入数累加到 seckill:persisted 给等候室放行用，新插入的订单登记支付截止时间（NX，不推迟已有的）
+     *
+     * @param inserted  这一次INSERT IGNORE真正插入的订单数
+     * @param scheduled 要登记支付截止时间的订单
+     */
+    private void publishOrderStatus(Map<Long, String> statuses, long inserted, Collection<Long> scheduled) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            statuses.forEach((orderId, status) -> {
+                // 下单用户由下单脚本写入，这里只改状态
+                conn.hSet(SECKILL_ORDER_STATUS_KEY + orderId, "status", status);
+                conn.expire(SECKILL_ORDER_STATUS_KEY + orderId, statusTtlSeconds);
+                conn.publish(SECKILL_ORDER_STATUS_CHANNEL, orderId + ":" + status);
+            });
+            if (inserted > 0) {
+                conn.incrBy(SECKILL_PERSISTED_KEY, inserted);
+            }
+            // 新落库的订单登记支付截止时间，超时未支付自动取消
+            if (payTimeoutSeconds > 0 && !scheduled.isEmpty()) {
+                long deadline = System.currentTimeMillis() + payTimeoutSeconds * 1000;
+                for (Long orderId : scheduled) {
+                    conn.zAdd(ORDER_DEADLINE_KEY, deadline, orderId.toString(), RedisZSetCommands.ZAddArgs.ifNotExists());
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 等候室取号：一人一个号，重复调用返回原来的号，可以用来轮询是否已经放行
+     * 前面排队的人已经够把剩余库存买完时直接告诉用户不用排了
+     *
+     * @param voucherId 优惠券id
+     * @return position 排队号，admitted 是否已经放行（放行后才能调用秒杀接口）
+     */
+    @Override
+    public Result takeSeckillTicket(Long voucherId) {
+        Long res = stringRedisTemplate.execute(
+                SECKILL_TICKET_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(),
+                UserHolder.getUser().getId().toString(),
+                String.valueOf(roomOverbook));
+        if (res == null) {
+            return Result.fail("服务器异常");
+        }
+        if (res == -2) {
+            return Result.fail("库存不足");
+        }
+        if (res == -3) {
+            return Result.fail("排队人数已满，库存不够了");
+        }
+        String admitted = stringRedisTemplate.opsForValue().get(SECKILL_ROOM_ADMITTED_KEY + voucherId);
+        Map<String, Object> ticket = new HashMap<>(2);
+        ticket.put("position", res);
+        ticket.put("admitted", admitted != null && res <= Long.parseLong(admitted));
+        return Result.ok(ticket);
+    }
+
+    // 收到状态变化：完成挂起的长轮询
+    private void onOrderStatus(String message) {
+        int index = message.indexOf(':');
+        Long orderId = Long.valueOf(message.substring(0, index));
+        String status = message.substring(index + 1);
+        Set<DeferredResult<Result>> waiters = statusWaiters.remove(orderId);
+        if (waiters != null) {
+            waiters.forEach(waiter -> waiter.setResult(Result.ok(status)));
+        }
+    }
+
+    /**
+     * 查询订单状态，支持长轮询
+     * <p>
+     * 先查Redis里的状态缓存：已经有结果直接返回，还在排队就挂起请求，等消费者落库后的广播唤醒，超时返回QUEUED
+     * 缓存过期了（订单比缓存TTL老）才查数据库；两条路都只让下单用户本人查询
+     *
+     * @param orderId 订单id
+     * @return QUEUED / PERSISTED / FAILED
+     */
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId) {
+        DeferredResult<Result> result = new DeferredResult<>(statusWaitMs, Result.ok(ORDER_QUEUED));
+        Long userId = UserHolder.getUser().getId();
+        List<Object> cached = stringRedisTemplate.opsForHash().multiGet(SECKILL_ORDER_STATUS_KEY + orderId,
+                Arrays.asList("status", "userId"));
+        String status = (String) cached.get(0);
+        Object owner = cached.get(1);
+        // 没有缓存，或者缓存里没有下单用户（过期后只被写回了状态）：按数据库里的订单判断
+        if (status == null || owner == null) {
+            VoucherOrder order = getById(orderId);
+            if (order == null || !order.getUserId().equals(userId)) {
+                result.setResult(Result.fail("订单不存在"));
+            } else {
+                result.setResult(Result.ok(status == null ? ORDER_PERSISTED : status));
+            }
+            return result;
+        }
+        if (!owner.equals(userId.toString())) {
+            result.setResult(Result.fail("订单不存在"));
+            return result;
+        }
+        if (!ORDER_QUEUED.equals(status)) {
+            result.setResult(Result.ok(status));
+            return result;
         }
+        Set<DeferredResult<Result>> waiters = statusWaiters.computeIfAbsent(orderId, k -> ConcurrentHashMap.newKeySet());
+        waiters.add(result);
+        result.onCompletion(() -> waiters.remove(result));
+        // 注册之前状态可能已经变了：再查一次，避免错过广播
+        status = (String) stringRedisTemplate.opsForHash().get(SECKILL_ORDER_STATUS_KEY + orderId, "status");
+        if (status != null && !ORDER_QUEUED.equals(status)) {
+            result.setResult(Result.ok(status));
+        }
+        return result;
+    }
+
+
+    /**
+     * 优惠卷秒杀 第四版：订单ID在Lua里生成
+     * <p>
+     * 校验通过后才在脚本里INCR序列号，一次请求只有一次Redis往返，被拒绝的请求不消耗序列号
+     * ID结构和RedisIDWorker一致：时间戳由Java算好传进去，脚本只负责序列号
+     */
+    @Override
+    public Result seckillVoucher_v4(Long voucherId) {
+        // 本地已经知道卖完了：不走网络
+        if (isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        Long userId = UserHolder.getUser().getId();
+        String streamKey = streamKeyOf(voucherId, userId);
+        // 消费跟不上：快速失败，不让积压继续涨
+        if (isOverloaded(streamKey)) {
+            return Result.fail("系统繁忙，请稍后再试");
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = redisIDWorker.timestamp(now);
+        String[] args = {
+                voucherId.toString(),
+                userId.toString(),
+                streamKey,
+                String.valueOf(timeStamp),
+                redisIDWorker.counterKey("order", now),
+                String.valueOf(streamMaxLen),
+                String.valueOf(statusTtlSeconds)};
+        // 开启了本地库存租约：库存在本地扣，只剩一人一单和发消息走Redis，返回的已经是订单id
+        Long res = seckillStockLease.sell(voucherId, userId, args);
+        boolean leased = res != null;
+        if (!leased) {
+            res = stringRedisTemplate.execute(SECKILL_SCRIPT_V4, Collections.emptyList(), (Object[]) args);
+        }
+        if (res == null) {
+            return Result.fail("服务器异常");
+        }
+        // 租约模式下只有Redis库存和各节点的租约都是0才返回-2；-7 是别的节点手里还有，不能标记售罄
+        if (res == -2) {
+            // 售罄：本地打标记并广播给其他节点
+            markSoldOut(voucherId);
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+        if (res < 0) {
+            return Result.fail(seckillFailMessage(res));
+        }
+
+        return Result.ok(leased ? res : RedisIDWorker.compose(timeStamp, res));
+    }
+
+    // 秒杀脚本返回的负数
+    private static String seckillFailMessage(long res) {
+        switch ((int) res) {
+            case -1:
+                return "不能重复下单";
+            case -3:
+                return "秒杀还未开始，请耐心等待";
+            case -4:
+                return "秒杀已经结束！";
+            case -5:
+                return "抢购人数太多，请稍后再试";
+            case -6:
+                return "还没轮到你，请先排队";
+            case -7:
+                return "库存暂时不足，请稍后再试";
+            default:
+                return "库存不足";
+        }
+    }
+
+    /**
+     * 一次买多张秒杀券：一个Lua脚本校验、扣减，所有订单一条消息，消费者一个事务落库
+     *
+     * @param voucherIds 优惠券id，重复的只算一次
+     * @param mode       ALL：有一张不行就都不买；BEST_EFFORT：能买的都买
+     * @return 每张券的订单id或者失败原因
+     */
+    @Override
+    public Result seckillVouchers(List<Long> voucherIds, String mode) {
+        if (!"ALL".equals(mode) && !"BEST_EFFORT".equals(mode)) {
+            return Result.fail("mode只能是ALL或者BEST_EFFORT");
+        }
+        List<Long> ids = voucherIds == null ? Collections.emptyList() : new ArrayList<>(new LinkedHashSet<>(voucherIds));
+        if (ids.isEmpty() || ids.size() > multiMax) {
+            return Result.fail("一次只能买1到" + multiMax + "张券");
+        }
+        // 本地已经知道卖完的：ALL直接失败，BEST_EFFORT不用再送进脚本
+        Map<Long, Map<String, Object>> results = new LinkedHashMap<>();
+        List<Long> candidates = new ArrayList<>(ids.size());
+        for (Long voucherId : ids) {
+            if (isSoldOut(voucherId)) {
+                if ("ALL".equals(mode)) {
+                    return Result.fail("库存不足: " + voucherId);
+                }
+                results.put(voucherId, failResult(voucherId, -2));
+            } else {
+                results.put(voucherId, null);
+                candidates.add(voucherId);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return Result.ok(new ArrayList<>(results.values()));
+        }
+        Long userId = UserHolder.getUser().getId();
+        String streamKey = streamKeyOf(candidates.get(0), userId);
+        if (isOverloaded(streamKey)) {
+            return Result.fail("系统繁忙，请稍后再试");
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = redisIDWorker.timestamp(now);
+        List<String> args = new ArrayList<>();
+        args.add(userId.toString());
+        args.add(streamKey);
+        args.add(String.valueOf(timeStamp));
+        args.add(redisIDWorker.counterKey("order", now));
+        args.add(String.valueOf(streamMaxLen));
+        args.add(String.valueOf(statusTtlSeconds));
+        args.add(mode);
+        candidates.forEach(id -> args.add(id.toString()));
+        List<?> codes = stringRedisTemplate.execute(SECKILL_MULTI_SCRIPT, Collections.emptyList(), args.toArray());
+        if (codes == null || codes.size() != candidates.size()) {
+            return Result.fail("服务器异常");
+        }
+        boolean failed = false;
+        for (int i = 0; i < candidates.size(); i++) {
+            Long voucherId = candidates.get(i);
+            long res = ((Number) codes.get(i)).longValue();
+            if (res == -2) {
+                markSoldOut(voucherId);
+                stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+            }
+            if (res > 0) {
+                Map<String, Object> result = new HashMap<>(2);
+                result.put("voucherId", voucherId);
+                result.put("orderId", RedisIDWorker.compose(timeStamp, res));
+                results.put(voucherId, result);
+            } else if (res < 0) {
+                failed = true;
+                results.put(voucherId, failResult(voucherId, res));
+            } else {
+                // ALL模式下这张券本身没问题，因为别的券不满足而没有买
+                Map<String, Object> result = new HashMap<>(2);
+                result.put("voucherId", voucherId);
+                result.put("errorMsg", "其他券不满足，未购买");
+                results.put(voucherId, result);
+            }
+        }
+        if (failed && "ALL".equals(mode)) {
+            // 失败也带上每张券的原因
+            return new Result(false, "部分券无法购买，全部未购买", new ArrayList<>(results.values()), null);
+        }
+        return Result.ok(new ArrayList<>(results.values()));
+    }
+
+    private static Map<String, Object> failResult(Long voucherId, long res) {
+        Map<String, Object> result = new HashMap<>(2);
+        result.put("voucherId", voucherId);
+        result.put("errorMsg", seckillFailMessage(res));
+        return result;
     }
 
 
@@ -202,48 +1197,100 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckillVoucher_v3(Long voucherId) throws InterruptedException {
+        // 本地已经知道卖完了：不生成ID、不走网络
+        if (isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        Long userId = UserHolder.getUser().getId();
+        String streamKey = streamKeyOf(voucherId, userId);
+        if (isOverloaded(streamKey)) {
+            return Result.fail("系统繁忙，请稍后再试");
+        }
         long orderId = redisIDWorker.nextId("order");
         Long res = stringRedisTemplate.execute(SECKILL_SCRIPT_V3,
                 Collections.emptyList(),
                 voucherId.toString(),
-                UserHolder.getUser().getId().toString(),
-                String.valueOf(orderId));
+                userId.toString(),
+                String.valueOf(orderId),
+                streamKey,
+                String.valueOf(streamMaxLen));
+        if (res.intValue() == 2) {
+            // 售罄：本地打标记并广播给其他节点
+            markSoldOut(voucherId);
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
         if (res.intValue() != 0) {
             return Result.fail(res.intValue() == 1 ? "不能重复下单" : "库存不足");
         }
 
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         return Result.ok(orderId);
     }
 
 
     /**
-     * 秒杀优惠卷 第二版： 缓存优化 + 异步阻塞队列
+     * 秒杀下单入口：按 hmdp.order.queue 选择，stream 用第四版，本地队列用第二版
+     */
+    @Override
+    public Result seckillVoucher(Long voucherId) throws InterruptedException {
+        return "stream".equals(orderQueue) ? seckillVoucher_v4(voucherId) : seckillVoucher_v2(voucherId);
+    }
+
+    /**
+     * 秒杀优惠卷 第二版： 缓存优化 + 异步阻塞队列 / 环形队列
+     * <p>
+     * 校验和扣减用第四版的脚本（起止时间、等候室、限流、库存分片、一人一单结构都一样），只是不发Stream消息，
+     * 订单放进本地队列；队列满了用 seckill_rollback.lua 按同样的分片和一人一单结构撤销
      *
      * @param voucherId 优惠卷ID
      * @return 结果信息
      */
     @Override
     public Result seckillVoucher_v2(Long voucherId) {
-        Long res = stringRedisTemplate.execute(SECKILL_SCRIPT_V2,
-                Collections.emptyList(),
+        if (isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        Long userId = UserHolder.getUser().getId();
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = redisIDWorker.timestamp(now);
+        Long res = stringRedisTemplate.execute(SECKILL_SCRIPT_V4, Collections.emptyList(),
                 voucherId.toString(),
-                UserHolder.getUser().getId().toString());
-        if (res != null && res.intValue() != 0) {
-            return Result.fail(res.intValue() == 1 ? "已经购买过啦" : "库存不足啦");
+                userId.toString(),
+                "",
+                String.valueOf(timeStamp),
+                redisIDWorker.counterKey("order", now),
+                String.valueOf(streamMaxLen),
+                String.valueOf(statusTtlSeconds));
+        if (res == null) {
+            return Result.fail("服务器异常");
+        }
+        if (res == -2) {
+            markSoldOut(voucherId);
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+        if (res < 0) {
+            return Result.fail(seckillFailMessage(res));
         }
 
         // 创建订单
-        VoucherOrder voucherOrder = new VoucherOrder();
-        voucherOrder.setVoucherId(voucherId);
-        long orderId = redisIDWorker.nextId("order");   // 小雪花ID
-        voucherOrder.setId(orderId);
-        voucherOrder.setUserId(UserHolder.getUser().getId());
-        // 保存到异步阻塞队列
-        orderTasks.add(voucherOrder);
-
-        // 主线程获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        long orderId = RedisIDWorker.compose(timeStamp, res);
+        boolean queued;
+        if (orderRing != null) {
+            // 环形队列：只写预分配的槽位
+            queued = orderRing.tryPublish(orderId, userId, voucherId);
+        } else {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setVoucherId(voucherId);
+            voucherOrder.setId(orderId);
+            voucherOrder.setUserId(userId);
+            // 保存到异步阻塞队列
+            queued = orderTasks.offer(voucherOrder);
+        }
+        if (!queued) {
+            // 队列满了：脚本里扣的库存、一人一单和订单状态撤销掉
+            stringRedisTemplate.execute(SECKILL_ROLLBACK_SCRIPT, Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId));
+            return Result.fail("系统繁忙，请稍后再试");
+        }
 
         return Result.ok(orderId);
     }
@@ -255,6 +1302,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * 如果操作失败就订单作废了
      * TODO: 订单的状态
      * 返回给用户的订单没有存入数据库，用户拿订单号是查不到的
+     * <p>
+     * 幂等：先INSERT IGNORE，靠(user_id, voucher_id)唯一索引判重，插入成功才扣库存
+     * pending-list重放同一条消息不会重复扣库存
      *
      * @param voucherOrder 传入已经创建好的订单
      * @return 订单号 || 错误信息
@@ -262,10 +1312,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Override
     @Transactional
     public Result CreateVoucherOrder_v2(VoucherOrder voucherOrder) {
-        // 判断有没有买过
-        int count = query().eq("voucher_id", voucherOrder.getVoucherId())
-                .eq("user_id", voucherOrder.getUserId()).count();
-        if (count > 0) {
+        // 保存订单：重复(主键或者一人一单唯一索引)影响行数为0
+        int inserted = getBaseMapper().insertIgnore(voucherOrder);
+        if (inserted == 0) {
             return Result.fail("已经抢过优惠券了哦");
         }
 
@@ -276,17 +1325,79 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 //.eq("stock", seckillVoucher.getStock())     // 乐观锁：检查版本号，和进来时是否一样
                 .gt("stock", 0)
                 .update();
-        if (!success)
+        if (!success) {
+            // 订单已经插进去了，回滚
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
             return Result.fail("库存不足");
-
-        // 保存订单
-        save(voucherOrder);
+        }
 
         // 返回订单ID
         return Result.ok("秒杀成功: " + voucherOrder.getId());
     }
 
 
+    /**
+     * 批量落库：消息队列批量消费使用
+     * 1. 按券分组，每组一条多行INSERT IGNORE，已经存在的订单（pending-list重放）被唯一索引忽略
+     * 2. 影响行数就是真正新增的订单数，同一张券的扣减合并成一条UPDATE
+     * 任何一张券库存不足则整批回滚，由调用方退回逐条处理
+     *
+     * @param voucherOrders 已经批内去重的订单
+     * @return 实际写入的订单数
+     */
+    @Override
+    @Transactional
+    public int CreateVoucherOrder_batch(List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return 0;
+        }
+        int total = 0;
+        Map<Long, List<VoucherOrder>> groups = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : groups.entrySet()) {
+            int inserted = getBaseMapper().insertIgnoreBatch(entry.getValue());
+            if (inserted == 0) {
+                continue;
+            }
+            // 按券聚合扣减库存
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", inserted)
+                    .update();
+            if (!success) {
+                throw new RuntimeException("库存不足，批量下单回滚: " + entry.getKey());
+            }
+            total += inserted;
+        }
+        return total;
+    }
+
+    /**
+     * 批量取消超时未支付的订单，数据库库存加回去
+     * 先 FOR UPDATE 锁住还未支付的（和支付互斥，已支付的跳过），整批一条UPDATE改状态，所有券一条UPDATE加库存
+     *
+     * @param orderIds 到期的订单id
+     * @return 每张券实际取消的订单数，调用方按这个加回Redis库存
+     */
+    @Override
+    @Transactional
+    public Map<Long, Integer> cancelUnpaidOrders(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<VoucherOrder> unpaid = getBaseMapper().selectUnpaidForUpdate(orderIds);
+        if (unpaid.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        getBaseMapper().cancelUnpaid(unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+        Map<Long, Integer> stocks = unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.summingInt(o -> 1)));
+        seckillVoucherMapper.returnStockBatch(stocks);
+        return stocks;
+    }
+
+
     /**
      * 秒杀优惠卷 第一版：查数据库 + 用户粒度锁
      *
@@ -1,6 +1,6 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.lang.TypeReference;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
@@ -8,15 +8,20 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CachePolicy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.util.List;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -38,37 +43,25 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    // 秒杀结束后Redis数据再保留多久
+    @Value("${hmdp.seckill.expire-grace-seconds:600}")
+    private long expireGraceSeconds;
+
+    @PostConstruct
+    private void init() {
+        cacheClient.register(CACHE_SHOP_VOUCHER_KEY, "shop-voucher", CACHE_SHOP_TTL, TimeUnit.SECONDS);
+        cacheClient.enableL1(CACHE_SHOP_VOUCHER_KEY);
+        cacheClient.enableEarlyRefresh(CACHE_SHOP_VOUCHER_KEY);
+    }
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        List<String> redisVouchers = stringRedisTemplate.opsForList().range(CACHE_SHOP_VOUCHER_KEY + shopId, 0, -1);
-        if (redisVouchers != null && !redisVouchers.isEmpty()) {
-            log.info("缓存查到商铺优惠卷");
-            List<Voucher> vouchers = redisVouchers.stream()
-                    .map(s -> JSONUtil.toBean(s, Voucher.class))
-                    .collect(Collectors.toList());
-            return Result.ok(vouchers);
-        }
-        //boolean success = Optional.ofNullable(redisVouchers)
-        //        .filter(list -> !list.isEmpty())
-        //        .isPresent(list -> {
-        //            log.info("缓存查到商铺优惠卷");
-        //            List<Voucher> vouchers = list.stream()
-        //                    .map(s -> JSONUtil.toBean(s, Voucher.class))
-        //                    .collect(Collectors.toList());
-        //            return Result.ok(vouchers);
-        //        });
-
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
-        // 保存到Redis中，防止击穿 有没有都存
-        redisVouchers = vouchers.stream().map(JSONUtil::toJsonStr).collect(Collectors.toList());
-        if(redisVouchers.isEmpty()){
-            redisVouchers.add("");
-        }
-        stringRedisTemplate.opsForList().leftPushAll(CACHE_SHOP_VOUCHER_KEY + shopId, redisVouchers);
-        stringRedisTemplate.expire(CACHE_SHOP_VOUCHER_KEY + shopId, CACHE_SHOP_TTL, TimeUnit.SECONDS);
-
-        // 返回结果
+        // 没有券也缓存空列表，防止穿透
+        List<Voucher> vouchers = cacheClient.get(CACHE_SHOP_VOUCHER_KEY, shopId, new TypeReference<List<Voucher>>() {
+        }, getBaseMapper()::queryVoucherOfShop, CachePolicy.MUTEX);
         return Result.ok(vouchers);
     }
 
@@ -83,10 +76,199 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        // 限流、等候室、一人一单配置也存数据库：Redis重启后预热任务从数据库恢复
+        seckillVoucher.setStockShards(voucher.getStockShards());
+        seckillVoucher.setRateLimit(voucher.getRateLimit());
+        seckillVoucher.setRateBurst(voucher.getRateBurst());
+        seckillVoucher.setUserRateLimit(voucher.getUserRateLimit());
+        seckillVoucher.setUserRateBurst(voucher.getUserRateBurst());
+        seckillVoucher.setWaitingRoom(voucher.getWaitingRoom());
+        seckillVoucher.setDedupEncoding(voucher.getDedupEncoding());
+        if ("intset".equals(voucher.getDedupEncoding())) {
+            seckillVoucher.setDedupShards(Math.max(1, (voucher.getStock() + SECKILL_INTSET_SHARD_SIZE - 1) / SECKILL_INTSET_SHARD_SIZE));
+        }
         seckillVoucherService.save(seckillVoucher);
 
-        // 保存到Redis中
-        // TODO: 过期时间
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 保存到Redis中：限流、等候室配置 + 库存 + 起止时间，秒杀结束后自动过期
+        // 配置先写：脚本看到库存时限流已经生效
+        saveSeckillOptions2Redis(seckillVoucher);
+        preheatSeckillVoucher(seckillVoucher, voucher.getStockShards());
+        // 通知各节点清掉本地售罄标记
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucher.getId().toString());
+        // 商铺的优惠券列表变了
+        cacheClient.delete(CACHE_SHOP_VOUCHER_KEY, voucher.getShopId());
+    }
+
+    /**
+     * 秒杀券补货：数据库和Redis库存同时加，然后广播清掉各节点的售罄标记
+     *
+     * @param voucherId 优惠券id
+     * @param amount    补货数量
+     */
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer amount) {
+        if (amount == null || amount <= 0) {
+            return Result.fail("补货数量必须大于0");
+        }
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + amount)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if (shards == null) {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, amount);
+        } else {
+            // 分片库存：平均加到各个分片上
+            int k = Integer.parseInt(shards);
+            for (int i = 0; i < k; i++) {
+                int shardAmount = amount / k + (i < amount % k ? 1 : 0);
+                if (shardAmount > 0) {
+                    stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId + ":" + i, shardAmount);
+                }
+            }
+            stringRedisTemplate.delete(SECKILL_SOLD_OUT_KEY + voucherId);
+        }
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+        return Result.ok();
+    }
+
+    /**
+     * 秒杀券预热到Redis：库存、起止时间（epoch秒）
+     * 秒杀脚本用Redis服务器时间判断起止，请求路径上不查数据库
+     * 库存、分片数、起止时间在结束后 expireGraceSeconds 过期
+     *
+     * @param seckillVoucher 秒杀券信息（库存、起止时间）
+     * @param shards         库存分片数，为空或不大于1则不分片
+     */
+    @Override
+    public void preheatSeckillVoucher(SeckillVoucher seckillVoucher, Integer shards) {
+        saveSeckillStock2Redis(seckillVoucher.getVoucherId(), seckillVoucher.getStock(), shards);
+        preheatSeckillWindow(seckillVoucher);
+    }
+
+    /**
+     * 只写起止时间、限流等配置和过期时间，不动库存（Redis里库存已经在卖了，数据库库存是滞后的）
+     *
+     * @param seckillVoucher 秒杀券信息（起止时间、配置）
+     */
+    @Override
+    public void preheatSeckillWindow(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        String windowKey = SECKILL_VOUCHER_KEY + voucherId;
+        saveSeckillOptions2Redis(seckillVoucher);
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(toEpochSecond(seckillVoucher.getBeginTime())));
+        window.put("end", String.valueOf(toEpochSecond(seckillVoucher.getEndTime())));
+        stringRedisTemplate.opsForHash().putAll(windowKey, window);
+
+        Date expireAt = new Date((toEpochSecond(seckillVoucher.getEndTime()) + expireGraceSeconds) * 1000);
+        List<String> keys = new ArrayList<>();
+        keys.add(windowKey);
+        keys.add(SECKILL_STOCK_KEY + voucherId);
+        keys.add(SECKILL_SHARDS_KEY + voucherId);
+        String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        for (int i = 0; shards != null && i < Integer.parseInt(shards); i++) {
+            keys.add(SECKILL_STOCK_KEY + voucherId + ":" + i);
+        }
+        for (String key : keys) {
+            stringRedisTemplate.expireAt(key, expireAt);
+        }
+    }
+
+    /**
+     * 秒杀结束后清理Redis：一人一单的集合、售罄标记、等候室，以及没有过期时间的旧数据
+     *
+     * @param voucherId 优惠券id
+     */
+    @Override
+    public void expireSeckillVoucher(Long voucherId) {
+        List<String> keys = new ArrayList<>();
+        keys.add(SECKILL_VOUCHER_KEY + voucherId);
+        keys.add(SECKILL_STOCK_KEY + voucherId);
+        keys.add(SECKILL_ORDER_KEY + voucherId);
+        keys.add(SECKILL_ORDER_BITS_KEY + voucherId);
+        Object dedupShards = stringRedisTemplate.opsForHash().get(SECKILL_VOUCHER_KEY + voucherId, "dedupShards");
+        for (int i = 0; dedupShards != null && i < Integer.parseInt(dedupShards.toString()); i++) {
+            keys.add(SECKILL_ORDER_KEY + voucherId + ":" + i);
+        }
+        keys.add(SECKILL_SOLD_OUT_KEY + voucherId);
+        keys.add(SECKILL_LEASED_KEY + voucherId);
+        keys.add(SECKILL_ROOM_TICKET_KEY + voucherId);
+        keys.add(SECKILL_ROOM_USER_KEY + voucherId);
+        keys.add(SECKILL_ROOM_ADMITTED_KEY + voucherId);
+        String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        for (int i = 0; shards != null && i < Integer.parseInt(shards); i++) {
+            keys.add(SECKILL_STOCK_KEY + voucherId + ":" + i);
+        }
+        keys.add(SECKILL_SHARDS_KEY + voucherId);
+        stringRedisTemplate.delete(keys);
+        stringRedisTemplate.opsForSet().remove(SECKILL_ROOMS_KEY, voucherId.toString());
+    }
+
+    /**
+     * 秒杀限流、等候室配置写入起止时间的hash
+     * 限流：秒杀脚本判库存之前按令牌桶限流，桶的状态在 seckill:bucket:{id} 和 seckill:bucket:{id}:{userId}
+     * 等候室：券id加入 seckill:rooms，由放行任务按订单消费速度分批放行
+     * 一人一单：bitmap 或者 intset，intset的分片数建券时按库存（最多的买家人数）算好存在数据库里
+     *
+     * @param voucher 秒杀券（限流、等候室、一人一单配置）
+     */
+    private void saveSeckillOptions2Redis(SeckillVoucher voucher) {
+        Map<String, String> limit = new HashMap<>(8);
+        if (voucher.getRateLimit() != null && voucher.getRateLimit() > 0) {
+            limit.put("rate", voucher.getRateLimit().toString());
+            limit.put("burst", String.valueOf(Optional.ofNullable(voucher.getRateBurst()).orElse(voucher.getRateLimit())));
+        }
+        if (voucher.getUserRateLimit() != null && voucher.getUserRateLimit() > 0) {
+            limit.put("userRate", voucher.getUserRateLimit().toString());
+            limit.put("userBurst", String.valueOf(Optional.ofNullable(voucher.getUserRateBurst()).orElse(voucher.getUserRateLimit())));
+        }
+        if ("bitmap".equals(voucher.getDedupEncoding())) {
+            limit.put("dedup", "bitmap");
+        } else if ("intset".equals(voucher.getDedupEncoding()) && voucher.getDedupShards() != null) {
+            limit.put("dedup", "intset");
+            limit.put("dedupShards", voucher.getDedupShards().toString());
+        }
+        if (Boolean.TRUE.equals(voucher.getWaitingRoom())) {
+            limit.put("room", "1");
+            stringRedisTemplate.opsForSet().add(SECKILL_ROOMS_KEY, voucher.getVoucherId().toString());
+        }
+        if (!limit.isEmpty()) {
+            stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucher.getVoucherId(), limit);
+        }
+    }
+
+    private static long toEpochSecond(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
+
+    /**
+     * 秒杀库存写入Redis
+     * 分片数大于1时拆成 seckill:stock:{id}:{0..K-1}，余数摊到前几个分片
+     * 秒杀脚本按userId哈希选分片，一人一单仍然用同一个 seckill:order:{id}
+     *
+     * @param voucherId 优惠券id
+     * @param stock     总库存
+     * @param shards    分片数，为空或不大于1则不分片
+     */
+    private void saveSeckillStock2Redis(Long voucherId, Integer stock, Integer shards) {
+        stringRedisTemplate.delete(SECKILL_SOLD_OUT_KEY + voucherId);
+        if (shards == null || shards <= 1) {
+            stringRedisTemplate.delete(SECKILL_SHARDS_KEY + voucherId);
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, stock.toString());
+            return;
+        }
+        Map<String, String> shardStocks = new HashMap<>(shards);
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            shardStocks.put(SECKILL_STOCK_KEY + voucherId + ":" + i, String.valueOf(shardStock));
+        }
+        stringRedisTemplate.opsForValue().multiSet(shardStocks);
+        // 分片数最后写：脚本看到分片数时分片库存一定已经就位
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, shards.toString());
     }
 }
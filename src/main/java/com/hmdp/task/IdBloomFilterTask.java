@@ -0,0 +1,90 @@
+package com.hmdp.task;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+
+/**
+ * id布隆过滤器的同步和重建
+ * <p>
+ * 启动时马上跑一次：Redis里有位图就加载，没有就从数据库建
+ * 之后定时检查版本号，别的节点重建过就重新加载；距离上次重建超过 rebuildMs 的，抢到锁的节点从数据库重建，去掉已经删除的id
+ */
+@Slf4j
+@Component
+public class IdBloomFilterTask {
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    // 多久全量重建一次
+    @Value("${hmdp.bloom.rebuild-ms:3600000}")
+    private long rebuildMs;
+
+    @Scheduled(fixedDelayString = "${hmdp.bloom.sync-ms:60000}")
+    public void sync() {
+        if (!idBloomFilter.isEnabled()) {
+            return;
+        }
+        refresh(IdBloomFilter.SHOP, shopService);
+        refresh(IdBloomFilter.BLOG, blogService);
+        refresh(IdBloomFilter.USER, userService);
+    }
+
+    private void refresh(String name, IService<?> service) {
+        try {
+            boolean loaded = idBloomFilter.sync(name);
+            if (loaded && Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOOM_KEY + name + ":built"))) {
+                return;
+            }
+            // 多个节点只需要一个重建，其他节点下一轮同步时加载
+            RLock lock = redissonClient.getLock("lock:bloom:" + name);
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                idBloomFilter.rebuild(name, () -> ids(service));
+                stringRedisTemplate.opsForValue().set(BLOOM_KEY + name + ":built",
+                        String.valueOf(System.currentTimeMillis()), rebuildMs, TimeUnit.MILLISECONDS);
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            log.error("同步布隆过滤器异常: {}", name, e);
+        }
+    }
+
+    private static <T> List<Long> ids(IService<T> service) {
+        return service.listObjs(new QueryWrapper<T>().select("id"), id -> Long.valueOf(id.toString()));
+    }
+}
@@ -0,0 +1,68 @@
+package com.hmdp.task;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderJournal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 本地订单日志回放
+ * <p>
+ * Redis不可用期间用本地租约卖出的订单只写在本节点的日志里，Redis恢复后按顺序一批批回放：
+ * 落库，补上Redis里的一人一单和租约计数（落库失败的库存还回去），发布订单状态，最后推进checkpoint
+ * 推进checkpoint之前挂了会整批重放，落库和脚本都是幂等的
+ */
+@Slf4j
+@Component
+public class OrderJournalReplayer {
+    @Resource
+    private OrderJournal orderJournal;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 一批回放多少条
+    @Value("${hmdp.order.journal.replay-batch:500}")
+    private int replayBatch;
+
+    @Scheduled(fixedDelayString = "${hmdp.order.journal.replay-ms:1000}")
+    public void replay() {
+        if (!orderJournal.isEnabled() || orderJournal.pending() == 0) {
+            return;
+        }
+        try {
+            // Redis还没恢复就等下一轮
+            stringRedisTemplate.execute((RedisCallback<String>) RedisConnection::ping);
+        } catch (Exception e) {
+            log.debug("Redis不可用，暂不回放订单日志");
+            return;
+        }
+        try {
+            List<long[]> records;
+            while (!(records = orderJournal.read(replayBatch)).isEmpty()) {
+                List<VoucherOrder> orders = new ArrayList<>(records.size());
+                for (long[] record : records) {
+                    orders.add(new VoucherOrder().setId(record[0]).setUserId(record[1]).setVoucherId(record[2]));
+                }
+                voucherOrderService.replayJournalOrders(orders);
+                orderJournal.commit(records.size());
+                log.info("回放订单日志{}条", records.size());
+            }
+        } catch (Exception e) {
+            log.error("回放订单日志异常", e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.hmdp.task;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券预热和清理
+ * <p>
+ * 预热：快开始的券如果Redis里没有（Redis重启、功能上线前建的券），从数据库加载库存、起止时间和限流、等候室、一人一单配置
+ * 清理：结束超过 expireGraceSeconds 的券，删掉一人一单集合等没有过期时间的key
+ */
+@Slf4j
+@Component
+public class SeckillPreheatTask {
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 开始前多久预热
+    @Value("${hmdp.seckill.preheat-ahead-seconds:300}")
+    private long preheatAheadSeconds;
+
+    @Value("${hmdp.seckill.expire-grace-seconds:600}")
+    private long expireGraceSeconds;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat-interval-ms:30000}")
+    public void preheat() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> upcoming = seckillVoucherService.query()
+                .le("begin_time", now.plusSeconds(preheatAheadSeconds))
+                .gt("end_time", now)
+                .list();
+        for (SeckillVoucher voucher : upcoming) {
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_VOUCHER_KEY + voucher.getVoucherId()))) {
+                continue;
+            }
+            Long voucherId = voucher.getVoucherId();
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_KEY + voucherId))
+                    || Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_SHARDS_KEY + voucherId))) {
+                // 库存已经在Redis里（旧数据）：只补起止时间和配置，不能用滞后的数据库库存覆盖
+                voucherService.preheatSeckillWindow(voucher);
+                continue;
+            }
+            voucherService.preheatSeckillVoucher(voucher, voucher.getStockShards());
+            log.info("秒杀券预热: {} 库存{}", voucherId, voucher.getStock());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat-interval-ms:30000}")
+    public void expire() {
+        // 只看最近一小时内到期的，删除是幂等的
+        LocalDateTime deadline = LocalDateTime.now().minusSeconds(expireGraceSeconds);
+        List<SeckillVoucher> ended = seckillVoucherService.query()
+                .select("voucher_id")
+                .le("end_time", deadline)
+                .gt("end_time", deadline.minusHours(1))
+                .list();
+        for (SeckillVoucher voucher : ended) {
+            voucherService.expireSeckillVoucher(voucher.getVoucherId());
+        }
+    }
+}
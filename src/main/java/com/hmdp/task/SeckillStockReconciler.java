@@ -0,0 +1,247 @@
+package com.hmdp.task;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存对账：Redis 和 tb_seckill_voucher
+ * <p>
+ * 不管消息有没有消费完，这两个等式都应该成立：
+ * Redis库存 + 租出去还没卖的(seckill:leased:{id}) + 已下单人数(seckill:order:{id}，或者bitmap/intset) - 已取消订单数
+ * == 初始库存 == 数据库库存 + 订单数（不含已取消）
+ * 超时取消的订单库存还回来了，但用户还留在一人一单里（不能再买），所以Redis侧要减掉已取消的
+ * 所以两边的和不相等就是库存漂移（进程崩溃、手工改数据等）
+ * 已下单人数和订单数的差是还没落库的订单，正常会很快归零，一直不变说明消息丢了
+ * <p>
+ * 读Redis和读数据库不是同一时刻，单次的偏差可能是瞬时的，连续两轮偏差相同才报告/修正
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    // 是否自动修正Redis库存（以数据库为准），否则只报告
+    @Value("${hmdp.reconcile.auto-correct:false}")
+    private boolean autoCorrect;
+
+    // 每批券数：一批一次管道读Redis、一条SQL查订单数
+    @Value("${hmdp.reconcile.batch-size:200}")
+    private int batchSize;
+
+    // 多批并行对账
+    private static final ExecutorService RECONCILE_EXECUTOR = Executors.newFixedThreadPool(8);
+
+    // 上一轮的偏差：voucherId -> 偏差值
+    private final Map<Long, Long> lastStockDrift = new ConcurrentHashMap<>();
+    private final Map<Long, Long> lastOrderDrift = new ConcurrentHashMap<>();
+
+    @Scheduled(fixedDelayString = "${hmdp.reconcile.interval-ms:60000}",
+            initialDelayString = "${hmdp.reconcile.interval-ms:60000}")
+    public void reconcile() {
+        // 多个节点只需要一个对账，自动修正也不能重复做
+        RLock lock = redissonClient.getLock("lock:reconcile");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            // 还在售和刚结束的秒杀券
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .select("voucher_id", "stock")
+                    .gt("end_time", LocalDateTime.now().minusHours(1))
+                    .list();
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < vouchers.size(); i += batchSize) {
+                List<SeckillVoucher> batch = vouchers.subList(i, Math.min(i + batchSize, vouchers.size()));
+                futures.add(CompletableFuture.supplyAsync(() -> reconcile(batch), RECONCILE_EXECUTOR));
+            }
+            int drifted = futures.stream().mapToInt(CompletableFuture::join).sum();
+            log.info("秒杀库存对账完成: {}张券，{}张库存有偏差，耗时{}ms",
+                    vouchers.size(), drifted, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("秒杀库存对账异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int reconcile(List<SeckillVoucher> vouchers) {
+        List<Long> voucherIds = vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList());
+
+        // 管道读：分片数、库存、一人一单的结构、租出去的库存
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long id : voucherIds) {
+                conn.get(SECKILL_SHARDS_KEY + id);
+                conn.get(SECKILL_STOCK_KEY + id);
+                conn.hMGet(SECKILL_VOUCHER_KEY + id, "dedup", "dedupShards");
+                conn.get(SECKILL_LEASED_KEY + id);
+            }
+            return null;
+        });
+        // 已下单人数：按一人一单的结构再管道读一次
+        List<Object> buyerCounts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < voucherIds.size(); i++) {
+                Long id = voucherIds.get(i);
+                @SuppressWarnings("unchecked")
+                List<String> dedup = (List<String>) values.get(4 * i + 2);
+                String encoding = dedup == null ? null : dedup.get(0);
+                if ("bitmap".equals(encoding)) {
+                    conn.bitCount(SECKILL_ORDER_BITS_KEY + id);
+                } else if ("intset".equals(encoding)) {
+                    int dedupShards = Integer.parseInt(dedup.get(1));
+                    for (int j = 0; j < dedupShards; j++) {
+                        conn.sCard(SECKILL_ORDER_KEY + id + ":" + j);
+                    }
+                } else {
+                    conn.sCard(SECKILL_ORDER_KEY + id);
+                }
+            }
+            return null;
+        });
+        Map<Long, Long> buyerTotals = new HashMap<>();
+        int cursor = 0;
+        for (int i = 0; i < voucherIds.size(); i++) {
+            @SuppressWarnings("unchecked")
+            List<String> dedup = (List<String>) values.get(4 * i + 2);
+            int parts = dedup != null && "intset".equals(dedup.get(0)) ? Integer.parseInt(dedup.get(1)) : 1;
+            long total = 0;
+            for (int j = 0; j < parts; j++) {
+                Object count = buyerCounts.get(cursor++);
+                total += count == null ? 0 : (Long) count;
+            }
+            buyerTotals.put(voucherIds.get(i), total);
+        }
+        Map<Long, Long> redisStocks = new HashMap<>();
+        Map<Long, Integer> shardCounts = new LinkedHashMap<>();
+        for (int i = 0; i < voucherIds.size(); i++) {
+            String shards = (String) values.get(4 * i);
+            String stock = (String) values.get(4 * i + 1);
+            String leased = (String) values.get(4 * i + 3);
+            if (shards != null) {
+                shardCounts.put(voucherIds.get(i), Integer.parseInt(shards));
+            } else if (stock != null) {
+                redisStocks.put(voucherIds.get(i), Long.parseLong(stock) + (leased == null ? 0 : Long.parseLong(leased)));
+            }
+        }
+        // 分片库存再管道读一次，求和
+        if (!shardCounts.isEmpty()) {
+            List<Object> shardStocks = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                shardCounts.forEach((id, k) -> {
+                    for (int j = 0; j < k; j++) {
+                        conn.get(SECKILL_STOCK_KEY + id + ":" + j);
+                    }
+                });
+                return null;
+            });
+            int index = 0;
+            for (Map.Entry<Long, Integer> entry : shardCounts.entrySet()) {
+                long sum = 0;
+                for (int j = 0; j < entry.getValue(); j++) {
+                    String stock = (String) shardStocks.get(index++);
+                    sum += stock == null ? 0 : Long.parseLong(stock);
+                }
+                redisStocks.put(entry.getKey(), sum);
+            }
+        }
+
+        // 数据库：一条SQL查这一批的订单数
+        Map<Long, Long> orderCounts = new HashMap<>();
+        Map<Long, Long> cancelCounts = new HashMap<>();
+        for (Map<String, Object> row : voucherOrderMapper.countByVoucher(voucherIds)) {
+            orderCounts.put(((Number) row.get("voucherId")).longValue(), ((Number) row.get("total")).longValue());
+            cancelCounts.put(((Number) row.get("voucherId")).longValue(), ((Number) row.get("cancelled")).longValue());
+        }
+
+        int drifted = 0;
+        for (int i = 0; i < vouchers.size(); i++) {
+            SeckillVoucher voucher = vouchers.get(i);
+            Long id = voucher.getVoucherId();
+            Long redisStock = redisStocks.get(id);
+            if (redisStock == null || voucher.getStock() == null) {
+                // 还没写入Redis
+                continue;
+            }
+            long buyers = buyerTotals.get(id);
+            long orders = orderCounts.getOrDefault(id, 0L);
+            long cancelled = cancelCounts.getOrDefault(id, 0L);
+
+            long stockDrift = (voucher.getStock() + orders) - (redisStock + buyers - cancelled);
+            if (isStable(lastStockDrift, id, stockDrift)) {
+                drifted++;
+                log.warn("秒杀库存不一致: voucherId={} Redis库存={} 已下单人数={} 已取消={} 数据库库存={} 订单数={} 偏差={}",
+                        id, redisStock, buyers, cancelled, voucher.getStock(), orders, stockDrift);
+                if (autoCorrect) {
+                    correctRedisStock(id, stockDrift, shardCounts.get(id));
+                    lastStockDrift.remove(id);
+                }
+            }
+            long orderDrift = buyers - orders - cancelled;
+            if (isStable(lastOrderDrift, id, orderDrift)) {
+                log.warn("秒杀订单不一致: voucherId={} Redis已下单{}人，数据库{}单，订单消息可能丢失", id, buyers, orders);
+            }
+        }
+        return drifted;
+    }
+
+    // 偏差为0清掉记录；和上一轮相同才算稳定的偏差
+    private boolean isStable(Map<Long, Long> last, Long id, long drift) {
+        if (drift == 0) {
+            last.remove(id);
+            return false;
+        }
+        Long previous = last.put(id, drift);
+        return previous != null && previous == drift;
+    }
+
+    // 以数据库为准修正Redis库存，分片库存修正在第0个分片上
+    private void correctRedisStock(Long voucherId, long drift, Integer shards) {
+        String key = shards == null ? SECKILL_STOCK_KEY + voucherId : SECKILL_STOCK_KEY + voucherId + ":0";
+        stringRedisTemplate.opsForValue().increment(key, drift);
+        if (drift > 0) {
+            // 库存变多了：清掉售罄标记
+            stringRedisTemplate.delete(SECKILL_SOLD_OUT_KEY + voucherId);
+            stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+        }
+        log.info("已修正Redis库存: voucherId={} {}", voucherId, drift);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        RECONCILE_EXECUTOR.shutdownNow();
+    }
+}
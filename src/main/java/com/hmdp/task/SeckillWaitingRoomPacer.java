@@ -0,0 +1,89 @@
+package com.hmdp.task;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀等候室放行
+ * <p>
+ * 开卖的瞬间所有人都来抢，开启等候室的券先排队取号，这里按号码顺序分批放行，放行了才能调用秒杀脚本
+ * 每批放多少由订单消费速度决定：上一轮落库了多少单，这一轮就放多少人（至少minBatch，至多maxBatch）
+ * 同时不超过剩余库存 × overbook，库存少了放得也少
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoomPacer {
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT;
+
+    static {
+        ADMIT_SCRIPT = new DefaultRedisScript<>();
+        ADMIT_SCRIPT.setLocation(new ClassPathResource("lua/seckill_admit.lua"));
+        ADMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    // 每轮每张券至少放行多少人：刚开卖还没有订单落库
+    @Value("${hmdp.room.min-batch:50}")
+    private long minBatch;
+
+    // 每轮每张券最多放行多少人
+    @Value("${hmdp.room.max-batch:2000}")
+    private long maxBatch;
+
+    @Value("${hmdp.room.overbook:2}")
+    private int overbook;
+
+    @Scheduled(fixedDelayString = "${hmdp.room.pace-ms:200}")
+    public void pace() {
+        Set<String> rooms = stringRedisTemplate.opsForSet().members(SECKILL_ROOMS_KEY);
+        if (rooms == null || rooms.isEmpty()) {
+            return;
+        }
+        // 多个节点只需要一个放行，落库计数也只能取一次
+        RLock lock = redissonClient.getLock("lock:room:pacer");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            // 取出并清零：上一轮以来所有节点落库的订单数
+            String persisted = stringRedisTemplate.opsForValue().getAndSet(SECKILL_PERSISTED_KEY, "0");
+            long throughput = persisted == null ? 0 : Long.parseLong(persisted);
+            long allowance = Math.min(maxBatch, Math.max(minBatch, throughput / rooms.size()));
+            for (String voucherId : rooms) {
+                if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_VOUCHER_KEY + voucherId))) {
+                    // 秒杀券已经过期
+                    stringRedisTemplate.opsForSet().remove(SECKILL_ROOMS_KEY, voucherId);
+                    continue;
+                }
+                stringRedisTemplate.execute(
+                        ADMIT_SCRIPT,
+                        Collections.emptyList(),
+                        voucherId,
+                        String.valueOf(allowance),
+                        String.valueOf(overbook));
+            }
+        } catch (Exception e) {
+            log.error("等候室放行异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.hmdp.task;
+
+import com.hmdp.service.IVoucherOrderService;
+import io.netty.util.HashedWheelTimer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 超时未支付订单自动取消
+ * <p>
+ * 订单落库时登记支付截止时间到 order:deadline（zset，score是截止时间）
+ * 每个节点定时领取快到期的一批（horizonMs之内），放进本地的时间轮，到期后攒成批量取消：
+ * 一个事务里锁住还未支付的、改成已取消、数据库库存按券加回；提交后Redis库存按券加回，广播补货
+ * 每批只有固定几条SQL，和订单数无关
+ * <p>
+ * 领取是把订单挪到 order:deadline:claimed，处理完再删掉；节点挂了，领取超时后别的节点会重新领走
+ * 重复处理是安全的：已经取消的订单不是未支付状态，不会再加一次库存
+ * 数据库提交了但Redis没加回去的，由库存对账发现（已取消订单数算在对账等式里）
+ */
+@Slf4j
+@Component
+public class UnpaidOrderCanceller {
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_STOCK_SCRIPT;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("lua/order_deadline_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+        RETURN_STOCK_SCRIPT = new DefaultRedisScript<>();
+        RETURN_STOCK_SCRIPT.setLocation(new ClassPathResource("lua/seckill_return_stock.lua"));
+        RETURN_STOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    // 支付超时时间，0表示不取消
+    @Value("${hmdp.order.pay-timeout-seconds:0}")
+    private long payTimeoutSeconds;
+
+    // 每次领取多久之内到期的
+    @Value("${hmdp.order.cancel.horizon-ms:10000}")
+    private long horizonMs;
+
+    // 领取超时：超过这个时间还没处理完，别的节点可以重新领
+    @Value("${hmdp.order.cancel.claim-ttl-ms:60000}")
+    private long claimTtlMs;
+
+    // 一次领取多少个
+    @Value("${hmdp.order.cancel.claim-limit:5000}")
+    private int claimLimit;
+
+    // 一个事务取消多少个
+    @Value("${hmdp.order.cancel.batch-size:500}")
+    private int batchSize;
+
+    private HashedWheelTimer wheel;
+
+    // 时间轮到期的订单，等批量取消
+    private final BlockingQueue<Long> dueOrders = new LinkedBlockingQueue<>();
+
+    private final ScheduledExecutorService CANCEL_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "order-canceller");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    private void init() {
+        if (payTimeoutSeconds <= 0) {
+            return;
+        }
+        // 100ms一格，1024格一圈，领取的都在horizonMs之内
+        wheel = new HashedWheelTimer(r -> {
+            Thread t = new Thread(r, "order-deadline-wheel");
+            t.setDaemon(true);
+            return t;
+        }, 100, TimeUnit.MILLISECONDS, 1024);
+        CANCEL_EXECUTOR.scheduleWithFixedDelay(this::cancelDue, 200, 200, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (wheel != null) {
+            // 没到期的不管：领取超时后别的节点会重新领
+            wheel.stop();
+        }
+        CANCEL_EXECUTOR.shutdown();
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.order.cancel.poll-ms:1000}")
+    public void poll() {
+        if (wheel == null) {
+            return;
+        }
+        try {
+            int claimed;
+            do {
+                long now = System.currentTimeMillis();
+                List<?> due = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                        Arrays.asList(ORDER_DEADLINE_KEY, ORDER_DEADLINE_CLAIMED_KEY),
+                        String.valueOf(now + horizonMs), String.valueOf(now),
+                        String.valueOf(claimTtlMs), String.valueOf(claimLimit));
+                claimed = due == null ? 0 : due.size() / 2;
+                for (int i = 0; i < claimed; i++) {
+                    Long orderId = Long.valueOf(due.get(2 * i).toString());
+                    long delay = Long.parseLong(due.get(2 * i + 1).toString()) - now;
+                    wheel.newTimeout(timeout -> dueOrders.offer(orderId), Math.max(0, delay), TimeUnit.MILLISECONDS);
+                }
+            } while (claimed >= claimLimit);
+        } catch (Exception e) {
+            log.error("领取到期订单异常", e);
+        }
+    }
+
+    // 到期的订单攒批取消
+    private void cancelDue() {
+        List<Long> batch = new ArrayList<>(batchSize);
+        while (dueOrders.drainTo(batch, batchSize) > 0) {
+            try {
+                cancel(batch);
+            } catch (Exception e) {
+                // 留在claimed里，领取超时后重试
+                log.error("取消超时订单异常: {}个", batch.size(), e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void cancel(List<Long> orderIds) {
+        Map<Long, Integer> stocks = voucherOrderService.cancelUnpaidOrders(orderIds);
+        for (Map.Entry<Long, Integer> entry : stocks.entrySet()) {
+            Long returned = stringRedisTemplate.execute(RETURN_STOCK_SCRIPT, Collections.emptyList(),
+                    entry.getKey().toString(), entry.getValue().toString());
+            if (returned != null && returned == 1) {
+                stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, entry.getKey().toString());
+            }
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.zRem(ORDER_DEADLINE_CLAIMED_KEY, orderIds.stream().map(String::valueOf).toArray(String[]::new));
+            return null;
+        });
+        if (!stocks.isEmpty()) {
+            log.info("取消超时未支付订单: {}", stocks);
+        }
+    }
+}
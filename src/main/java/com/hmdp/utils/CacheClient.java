@@ -0,0 +1,611 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.lang.reflect.Type;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 通用缓存工具：缓存穿透（空值）、缓存击穿（互斥锁 / 逻辑过期）
+ * <p>
+ * 每个缓存空间（key前缀）先 register 自己的TTL和序列化方式，读的时候选策略：
+ * <pre>
+ * cacheClient.get(CACHE_SHOP_KEY, id, Shop.class, this::getById, CachePolicy.MUTEX)
+ * </pre>
+ * 指标：cache.gets（keyspace, result=hit/null/miss/wait/stale，wait是等别人（本节点或其他节点）重建完拿到的），cache.load（查数据库的耗时）
+ * <p>
+ * 热点缓存空间可以 enableL1：Redis前面再加一层进程内缓存（L1），存的是反序列化之后的对象
+ * L1是ConcurrentHashMap，读不加锁；超过上限时先删过期的，还多就按最后访问时间删掉最久没访问的（近似LRU，多删10%）
+ * delete/set 时广播key，各节点删掉自己的L1；广播丢了最多旧 l1TtlMs
+ * 指标：cache.l1.gets（keyspace, result=hit/miss），和 cache.gets 一起算每一级的命中率
+ * L1里的对象各请求共用，调用方不要修改
+ * <p>
+ * 写入时TTL随机加 0 ~ ttlJitter 倍，一起加载的key不会一起过期
+ * enableEarlyRefresh 的缓存空间按 XFetch 提前刷新：读到的key剩余TTL越短、查数据库越慢，越可能在后台提前重建，
+ * 读的人照样拿缓存里的值；提前刷新和未命中的重建共用本节点的单飞（loading）和重建完成广播
+ * 指标 cache.refresh（keyspace, type=early/miss），提前刷新和真正未命中各多少次
+ */
+@Slf4j
+@Component
+public class CacheClient {
+    // 等别的节点重建：每次最多等多久、最多等几次（合起来和锁的过期时间差不多），等不到就自己查数据库
+    private static final long REBUILD_WAIT_MS = 500;
+    private static final int REBUILD_WAITS = 20;
+
+    // 用于逻辑过期重建缓存的线程池
+    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // L1最多多少个key
+    @Value("${hmdp.cache.l1.max-size:10000}")
+    private int l1MaxSize;
+
+    // L1最长保留多久，也就是最多旧多久
+    @Value("${hmdp.cache.l1.ttl-ms:1000}")
+    private long l1TtlMs;
+
+    // TTL随机增加的比例
+    @Value("${hmdp.cache.ttl-jitter:0.2}")
+    private double ttlJitter;
+
+    // XFetch的beta：越大越早刷新
+    @Value("${hmdp.cache.xfetch-beta:1.0}")
+    private double xfetchBeta;
+
+    // key前缀 -> 缓存空间配置
+    private final Map<String, Keyspace> keyspaces = new ConcurrentHashMap<>();
+
+    // 本节点正在重建的key：同一个key的并发未命中共用一次加载
+    private final Map<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+
+    // 等别的节点重建完的广播：key -> 收到广播时完成
+    private final Map<String, CompletableFuture<Void>> rebuilt = new ConcurrentHashMap<>();
+
+    // L1：key -> 值，超过上限由写入的线程淘汰（同一时间只有一个线程在淘汰）
+    private final Map<String, L1Entry> l1 = new ConcurrentHashMap<>();
+    private final AtomicBoolean l1Trimming = new AtomicBoolean();
+
+    @PostConstruct
+    private void init() {
+        // 订阅缓存失效广播，删掉本节点的L1
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> evictL1(new String(message.getBody())),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        // 订阅缓存重建完成广播，唤醒本节点等锁的线程
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onRebuilt(new String(message.getBody())),
+                new ChannelTopic(CACHE_REBUILT_CHANNEL));
+    }
+
+    /**
+     * 注册缓存空间，用JSON序列化
+     *
+     * @param keyPrefix key前缀
+     * @param name      指标里的名字
+     * @param ttl       缓存时间，逻辑过期时是逻辑过期时间
+     */
+    public void register(String keyPrefix, String name, long ttl, TimeUnit unit) {
+        register(keyPrefix, name, ttl, unit, CacheSerializer.JSON);
+    }
+
+    public void register(String keyPrefix, String name, long ttl, TimeUnit unit, CacheSerializer serializer) {
+        keyspaces.put(keyPrefix, new Keyspace(name, ttl, unit, serializer));
+    }
+
+    /**
+     * 已注册的缓存空间前面加一层L1
+     */
+    public void enableL1(String keyPrefix) {
+        keyspaceOf(keyPrefix).l1 = true;
+    }
+
+    /**
+     * 已注册的缓存空间按 XFetch 提前刷新，只对带TTL的策略（PASS_THROUGH、MUTEX）有效
+     */
+    public void enableEarlyRefresh(String keyPrefix) {
+        keyspaceOf(keyPrefix).earlyRefresh = true;
+    }
+
+    /**
+     * 读缓存，未命中时用 loader 查数据库并写回
+     *
+     * @param keyPrefix 已注册的key前缀，key = keyPrefix + id
+     * @param type      值的类型，集合用 new TypeReference<List<X>>() {}
+     * @param loader    查数据库，不存在返回null
+     * @return 不存在返回null
+     */
+    public <R, ID> R get(String keyPrefix, ID id, Type type, Function<ID, R> loader, CachePolicy policy) {
+        Keyspace keyspace = keyspaceOf(keyPrefix);
+        String key = keyPrefix + id;
+        if (!keyspace.l1) {
+            return getFromRedis(keyspace, key, id, type, loader, policy);
+        }
+        long now = System.currentTimeMillis();
+        L1Entry entry = l1.get(key);
+        if (entry != null && entry.expireAt > now) {
+            entry.lastAccess = now;
+            meterRegistry.counter("cache.l1.gets", "keyspace", keyspace.name, "result", "hit").increment();
+            @SuppressWarnings("unchecked")
+            R value = (R) entry.value;
+            return value;
+        }
+        meterRegistry.counter("cache.l1.gets", "keyspace", keyspace.name, "result", "miss").increment();
+        R value = getFromRedis(keyspace, key, id, type, loader, policy);
+        l1.put(key, new L1Entry(value, now + l1TtlMs, now));
+        if (l1.size() > l1MaxSize) {
+            trimL1();
+        }
+        return value;
+    }
+
+    // 淘汰：先删过期的，还超过上限就删最后访问时间最早的那部分，多删10%，不用每次写入都淘汰
+    private void trimL1() {
+        if (!l1Trimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            l1.values().removeIf(entry -> entry.expireAt <= now);
+            int excess = l1.size() - l1MaxSize;
+            if (excess <= 0) {
+                return;
+            }
+            long[] accesses = l1.values().stream().mapToLong(entry -> entry.lastAccess).sorted().toArray();
+            if (accesses.length == 0) {
+                return;
+            }
+            long threshold = accesses[Math.min(accesses.length - 1, excess + l1MaxSize / 10)];
+            l1.values().removeIf(entry -> entry.lastAccess <= threshold);
+        } finally {
+            l1Trimming.set(false);
+        }
+    }
+
+    private <R, ID> R getFromRedis(Keyspace keyspace, String key, ID id, Type type, Function<ID, R> loader,
+                                   CachePolicy policy) {
+        switch (policy) {
+            case MUTEX:
+                return getWithMutex(keyspace, key, id, type, loader);
+            case LOGICAL_EXPIRE:
+                return getWithLogicalExpire(keyspace, key, id, type, loader);
+            default:
+                return getWithPassThrough(keyspace, key, id, type, loader);
+        }
+    }
+
+    /**
+     * 写缓存，带TTL；null写空值
+     */
+    public void set(String keyPrefix, Object id, Object value) {
+        Keyspace keyspace = keyspaceOf(keyPrefix);
+        write(keyspace, keyPrefix + id, value);
+        invalidateL1(keyspace, keyPrefix + id);
+    }
+
+    /**
+     * 写逻辑过期的缓存：不设TTL，过期时间和数据一起存；null写空值
+     */
+    public void setWithLogicalExpire(String keyPrefix, Object id, Object value) {
+        Keyspace keyspace = keyspaceOf(keyPrefix);
+        writeLogical(keyspace, keyPrefix + id, value);
+        invalidateL1(keyspace, keyPrefix + id);
+    }
+
+    /**
+     * 删缓存，开了L1的广播给所有节点
+     */
+    public void delete(String keyPrefix, Object id) {
+        stringRedisTemplate.delete(keyPrefix + id);
+        invalidateL1(keyspaceOf(keyPrefix), keyPrefix + id);
+    }
+
+    private void invalidateL1(Keyspace keyspace, String key) {
+        if (!keyspace.l1) {
+            return;
+        }
+        // 本节点马上删，其他节点收到广播再删
+        evictL1(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    private void evictL1(String key) {
+        l1.remove(key);
+    }
+
+    /**
+     * 读缓存；开了提前刷新的用管道顺便取剩余TTL
+     * XFetch：-delta * beta * ln(rand) >= 剩余TTL 时提前刷新，delta是这个缓存空间查数据库的平均耗时
+     * 刷新在后台做，拿到锁的节点才刷新，返回的还是缓存里的值
+     */
+    private <R, ID> String read(Keyspace keyspace, String key, ID id, Function<ID, R> loader) {
+        if (!keyspace.earlyRefresh) {
+            return stringRedisTemplate.opsForValue().get(key);
+        }
+        List<Object> res = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.get(key);
+            conn.pTtl(key);
+            return null;
+        });
+        String json = (String) res.get(0);
+        Long ttl = (Long) res.get(1);
+        if (StrUtil.isNotBlank(json) && ttl != null && ttl > 0) {
+            double gap = -keyspace.loadMillis * xfetchBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+            if (gap >= ttl) {
+                refreshEarly(keyspace, key, id, loader);
+            }
+        }
+        return json;
+    }
+
+    // 和未命中的重建走同一套：登记到 loading（本节点同一个key只加载一次，未命中的线程直接等这次的结果），
+    // 抢分布式锁，重建完广播
+    private <R, ID> void refreshEarly(Keyspace keyspace, String key, ID id, Function<ID, R> loader) {
+        // 本节点已经在加载：不用再抢锁
+        if (loading.containsKey(key)) {
+            return;
+        }
+        String lockKey = CACHE_LOCK_KEY + key;
+        if (!tryLock(lockKey)) {
+            return;
+        }
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        if (loading.putIfAbsent(key, future) != null) {
+            unlock(lockKey);
+            return;
+        }
+        meterRegistry.counter("cache.refresh", "keyspace", keyspace.name, "type", "early").increment();
+        try {
+            CACHE_REBUILD_EXECUTOR.submit(() -> {
+                try {
+                    R value = load(keyspace, id, loader);
+                    writeAndNotify(keyspace, key, value);
+                    future.complete(value);
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                    log.error("提前刷新缓存失败: {}", key, e);
+                } finally {
+                    loading.remove(key, future);
+                    unlock(lockKey);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            loading.remove(key, future);
+            unlock(lockKey);
+            throw e;
+        }
+    }
+
+    private <R, ID> R getWithPassThrough(Keyspace keyspace, String key, ID id, Type type, Function<ID, R> loader) {
+        String json = read(keyspace, key, id, loader);
+        if (StrUtil.isNotBlank(json)) {
+            record(keyspace, "hit");
+            return keyspace.serializer.deserialize(json, type);
+        }
+        // 查到了空值：防止穿透
+        if (json != null) {
+            record(keyspace, "null");
+            return null;
+        }
+        record(keyspace, "miss");
+        R value = load(keyspace, id, loader);
+        write(keyspace, key, value);
+        return value;
+    }
+
+    /**
+     * 互斥锁重建，两层合并：
+     * 本节点内同一个key的并发未命中共用一个 CompletableFuture，只有第一个线程（节点内的leader）去抢分布式锁
+     * 抢到锁的查数据库写缓存，然后广播key；没抢到的等广播（最多 REBUILD_WAIT_MS）再读缓存，不轮询
+     */
+    private <R, ID> R getWithMutex(Keyspace keyspace, String key, ID id, Type type, Function<ID, R> loader) {
+        String json = read(keyspace, key, id, loader);
+        if (StrUtil.isNotBlank(json)) {
+            record(keyspace, "hit");
+            return keyspace.serializer.deserialize(json, type);
+        }
+        if (json != null) {
+            record(keyspace, "null");
+            return null;
+        }
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> leader = loading.putIfAbsent(key, future);
+        if (leader != null) {
+            // 本节点已经有线程在加载：等它的结果
+            record(keyspace, "wait");
+            return join(leader, keyspace, key, id, type, loader, false);
+        }
+        try {
+            R value = rebuild(keyspace, key, id, type, loader);
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    // 节点内的leader：抢分布式锁重建，或者等别的节点重建完
+    private <R, ID> R rebuild(Keyspace keyspace, String key, ID id, Type type, Function<ID, R> loader) {
+        String lockKey = CACHE_LOCK_KEY + key;
+        for (int i = 0; i < REBUILD_WAITS; i++) {
+            // 先登记再抢锁：抢锁失败到开始等之间的广播也不会漏
+            CompletableFuture<Void> notified = rebuilt.computeIfAbsent(key, k -> new CompletableFuture<>());
+            if (tryLock(lockKey)) {
+                try {
+                    // 拿到锁之前别人可能刚重建完
+                    String json = stringRedisTemplate.opsForValue().get(key);
+                    if (json != null) {
+                        record(keyspace, "wait");
+                        return json.isEmpty() ? null : keyspace.serializer.deserialize(json, type);
+                    }
+                    record(keyspace, "miss");
+                    R value = load(keyspace, id, loader);
+                    writeAndNotify(keyspace, key, value);
+                    return value;
+                } finally {
+                    unlock(lockKey);
+                }
+            }
+            try {
+                notified.get(REBUILD_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignored) {
+                // 没等到广播也再读一次缓存
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                rebuilt.remove(key, notified);
+            }
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (json != null) {
+                record(keyspace, "wait");
+                return json.isEmpty() ? null : keyspace.serializer.deserialize(json, type);
+            }
+        }
+        // 等太久说明持锁的挂了，不再等
+        record(keyspace, "miss");
+        R value = load(keyspace, id, loader);
+        writeAndNotify(keyspace, key, value);
+        return value;
+    }
+
+    // 重建成功：写缓存并广播，唤醒各节点等这个key的线程
+    private void writeAndNotify(Keyspace keyspace, String key, Object value) {
+        write(keyspace, key, value);
+        stringRedisTemplate.convertAndSend(CACHE_REBUILT_CHANNEL, key);
+    }
+
+    private void onRebuilt(String key) {
+        CompletableFuture<Void> notified = rebuilt.remove(key);
+        if (notified != null) {
+            notified.complete(null);
+        }
+    }
+
+    // 等本节点的leader加载完；等超时了先读缓存，还没有就自己查数据库（不写缓存，留给leader）
+    // logical：缓存是逻辑过期的格式（RedisData）
+    @SuppressWarnings("unchecked")
+    private <R, ID> R join(CompletableFuture<Object> future, Keyspace keyspace, String key, ID id, Type type,
+                           Function<ID, R> loader, boolean logical) {
+        try {
+            return (R) future.get(REBUILD_WAIT_MS * REBUILD_WAITS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } catch (TimeoutException e) {
+            log.warn("等待缓存重建超时: {}", key);
+        }
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (json != null) {
+            if (json.isEmpty()) {
+                return null;
+            }
+            return logical ? readLogicalData(keyspace, JSONUtil.toBean(json, RedisData.class).getData(), type)
+                    : keyspace.serializer.deserialize(json, type);
+        }
+        record(keyspace, "miss");
+        return load(keyspace, id, loader);
+    }
+
+    private <R, ID> R getWithLogicalExpire(Keyspace keyspace, String key, ID id, Type type, Function<ID, R> loader) {
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (json == null) {
+            // 没有预热过：同步查一次写进去，之后都走逻辑过期；本节点同一个key只查一次，其他线程等这次的结果
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            CompletableFuture<Object> leader = loading.putIfAbsent(key, future);
+            if (leader != null) {
+                record(keyspace, "wait");
+                return join(leader, keyspace, key, id, type, loader, true);
+            }
+            try {
+                record(keyspace, "miss");
+                R value = load(keyspace, id, loader);
+                writeLogical(keyspace, key, value);
+                future.complete(value);
+                return value;
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                loading.remove(key, future);
+            }
+        }
+        if (json.isEmpty()) {
+            record(keyspace, "null");
+            return null;
+        }
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        R value = readLogicalData(keyspace, redisData.getData(), type);
+        if (LocalDateTime.now().isBefore(redisData.getExpireTime())) {
+            record(keyspace, "hit");
+            return value;
+        }
+        // 过期：拿到锁的异步重建，所有人先返回旧值
+        record(keyspace, "stale");
+        String lockKey = CACHE_LOCK_KEY + key;
+        if (tryLock(lockKey)) {
+            CACHE_REBUILD_EXECUTOR.submit(() -> {
+                try {
+                    writeLogical(keyspace, key, load(keyspace, id, loader));
+                } catch (Exception e) {
+                    log.error("重建缓存失败: {}", key, e);
+                } finally {
+                    unlock(lockKey);
+                }
+            });
+        }
+        return value;
+    }
+
+    // data现在是序列化好的字符串；旧版本直接把对象嵌在JSON里（RedisData.data是JSON对象），
+    // 这种key还没过期前照样能读，逻辑过期后按新格式重写
+    private <R> R readLogicalData(Keyspace keyspace, Object data, Type type) {
+        if (data instanceof String) {
+            return keyspace.serializer.deserialize((String) data, type);
+        }
+        return CacheSerializer.JSON.deserialize(JSONUtil.toJsonStr(data), type);
+    }
+
+    private <R, ID> R load(Keyspace keyspace, ID id, Function<ID, R> loader) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            return loader.apply(id);
+        } finally {
+            long nanos = sample.stop(meterRegistry.timer("cache.load", "keyspace", keyspace.name));
+            // 平均耗时（指数加权），给XFetch用
+            double millis = nanos / 1e6;
+            keyspace.loadMillis = keyspace.loadMillis == 0 ? millis : keyspace.loadMillis * 0.8 + millis * 0.2;
+        }
+    }
+
+    private void write(Keyspace keyspace, String key, Object value) {
+        if (value == null) {
+            // 数据不存在写入空值
+            stringRedisTemplate.opsForValue().set(key, "", jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)),
+                    TimeUnit.MILLISECONDS);
+            return;
+        }
+        stringRedisTemplate.opsForValue().set(key, keyspace.serializer.serialize(value),
+                jitter(keyspace.unit.toMillis(keyspace.ttl)), TimeUnit.MILLISECONDS);
+    }
+
+    private void writeLogical(Keyspace keyspace, String key, Object value) {
+        if (value == null) {
+            stringRedisTemplate.opsForValue().set(key, "", jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)),
+                    TimeUnit.MILLISECONDS);
+            return;
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(keyspace.serializer.serialize(value));
+        redisData.setExpireTime(LocalDateTime.now().plus(jitter(keyspace.unit.toMillis(keyspace.ttl)), ChronoUnit.MILLIS));
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+    }
+
+    // TTL随机加 0 ~ ttlJitter 倍
+    private long jitter(long ttlMillis) {
+        return ttlMillis + (long) (ttlMillis * ttlJitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    private Keyspace keyspaceOf(String keyPrefix) {
+        Keyspace keyspace = keyspaces.get(keyPrefix);
+        if (keyspace == null) {
+            throw new IllegalArgumentException("缓存空间未注册: " + keyPrefix);
+        }
+        return keyspace;
+    }
+
+    private void record(Keyspace keyspace, String result) {
+        meterRegistry.counter("cache.gets", "keyspace", keyspace.name, "result", result).increment();
+        if ("miss".equals(result)) {
+            meterRegistry.counter("cache.refresh", "keyspace", keyspace.name, "type", "miss").increment();
+        }
+    }
+
+    private boolean tryLock(String key) {
+        Boolean b = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        // Boolean取消装箱可能空指针
+        return BooleanUtil.isTrue(b);
+    }
+
+    private void unlock(String key) {
+        stringRedisTemplate.delete(key);
+    }
+
+    private static class Keyspace {
+        private final String name;
+        private final long ttl;
+        private final TimeUnit unit;
+        private final CacheSerializer serializer;
+        private volatile boolean l1;
+        private volatile boolean earlyRefresh;
+        // 查数据库的平均耗时（毫秒）
+        private volatile double loadMillis;
+
+        Keyspace(String name, long ttl, TimeUnit unit, CacheSerializer serializer) {
+            this.name = name;
+            this.ttl = ttl;
+            this.unit = unit;
+            this.serializer = serializer;
+        }
+    }
+
+    private static class L1Entry {
+        // null表示数据不存在
+        private final Object value;
+        private final long expireAt;
+        // 最后一次命中的时间，淘汰用；并发命中谁写都行
+        private volatile long lastAccess;
+
+        L1Entry(Object value, long expireAt, long lastAccess) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存读取策略
+ */
+public enum CachePolicy {
+    /**
+     * 缓存穿透：查不到的也缓存一个空值，一段时间内不再打到数据库
+     */
+    PASS_THROUGH,
+    /**
+     * 缓存击穿（互斥锁）：未命中时只有拿到锁的线程查数据库重建，其他线程等它写回缓存
+     */
+    MUTEX,
+    /**
+     * 缓存击穿（逻辑过期）：缓存不设TTL，过期了先返回旧值，拿到锁的线程异步重建
+     */
+    LOGICAL_EXPIRE
+}
@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Type;
+
+/**
+ * 缓存值和Redis字符串之间的转换，每个缓存空间可以用不同的实现
+ */
+public interface CacheSerializer {
+    /**
+     * 默认用JSON
+     */
+    CacheSerializer JSON = new CacheSerializer() {
+        @Override
+        public String serialize(Object value) {
+            return JSONUtil.toJsonStr(value);
+        }
+
+        @Override
+        public <R> R deserialize(String value, Type type) {
+            return JSONUtil.toBean(value, type, false);
+        }
+    };
+
+    String serialize(Object value);
+
+    <R> R deserialize(String value, Type type);
+}
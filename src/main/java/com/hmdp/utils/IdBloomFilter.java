@@ -0,0 +1,343 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 商铺、博客、用户id的布隆过滤器，挡住根本不存在的id（缓存穿透），不用再去Redis和数据库
+ * <p>
+ * 位图存在Redis的 bloom:{name}（所有节点共用），每个节点在本地存一份，本地说可能存在就直接放行
+ * 新增：本地置位 + Redis SETBIT + 广播 name:id，其他节点收到后置位自己的那份
+ * 重建：定时从数据库全量重建（删掉的id才能去掉），版本号 bloom:{name}:version 加一，其他节点同步时发现版本变了重新加载
+ * 重建期间广播过来的新增在写完新位图后补上，不会丢；加载Redis位图期间的新增在加载完后补到本地
+ * <p>
+ * 本地还没加载好之前一律放行；本地说不存在时再用GETBIT到Redis位图确认一次，广播丢了也不会误拒新增的id（顺便补上本地的位）
+ */
+@Slf4j
+@Component
+public class IdBloomFilter {
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.bloom.enabled:false}")
+    private boolean enabled;
+
+    // 预计的id数量和误判率，决定位图大小和哈希次数
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    // 位数
+    private long bits;
+    // 哈希次数
+    private int hashes;
+
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        bits = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        // 凑成整字节，和Redis里的位图长度一致
+        bits = (bits + 7) / 8 * 8;
+        hashes = Math.max(1, (int) Math.round((double) bits / expectedInsertions * Math.log(2)));
+        for (String name : new String[]{SHOP, BLOG, USER}) {
+            filters.put(name, new Filter(bits));
+        }
+        // 订阅其他节点的新增
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody());
+            int i = body.indexOf(':');
+            Filter filter = filters.get(body.substring(0, i));
+            long id = Long.parseLong(body.substring(i + 1));
+            if (filter != null) {
+                filter.add(id, offsets(id));
+            }
+        }, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        log.info("布隆过滤器: {}位, {}次哈希", bits, hashes);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return false 表示id一定不存在
+     */
+    public boolean mightContain(String name, long id) {
+        if (!enabled) {
+            return true;
+        }
+        Filter filter = filters.get(name);
+        if (!filter.ready) {
+            return true;
+        }
+        long[] offsets = offsets(id);
+        return filter.get(offsets) || confirm(name, id, filter, offsets);
+    }
+
+    // 本地没有：可能是广播丢了，到Redis位图确认，确实有就补到本地
+    private boolean confirm(String name, long id, Filter filter, long[] offsets) {
+        String key = BLOOM_KEY + name;
+        List<Object> results;
+        try {
+            results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (long offset : offsets) {
+                    conn.getBit(key, offset);
+                }
+                return null;
+            });
+        } catch (RuntimeException e) {
+            // Redis不可用：和没加载好一样放行
+            log.warn("布隆过滤器 {} 确认 {} 失败", name, id, e);
+            return true;
+        }
+        for (Object bit : results) {
+            if (!Boolean.TRUE.equals(bit)) {
+                return false;
+            }
+        }
+        filter.add(id, offsets);
+        return true;
+    }
+
+    /**
+     * 新增id：新数据落库后调用
+     */
+    public void add(String name, long id) {
+        if (!enabled) {
+            return;
+        }
+        long[] offsets = offsets(id);
+        filters.get(name).add(id, offsets);
+        String key = BLOOM_KEY + name;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long offset : offsets) {
+                conn.setBit(key, offset, true);
+            }
+            conn.publish(BLOOM_ADD_CHANNEL, name + ":" + id);
+            return null;
+        });
+    }
+
+    /**
+     * 和Redis里的位图同步：版本变了就重新加载
+     *
+     * @return false 表示Redis里没有可用的位图，需要重建
+     */
+    public boolean sync(String name) {
+        Filter filter = filters.get(name);
+        String version = stringRedisTemplate.opsForValue().get(BLOOM_KEY + name + ":version");
+        if (version == null) {
+            return false;
+        }
+        if (filter.ready && version.equals(filter.version)) {
+            return true;
+        }
+        // 从GET开始记下新增：GET之后才写进Redis的位不在bytes里，load会把本地的也覆盖掉
+        filter.loading = true;
+        try {
+            byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                    connection.get((BLOOM_KEY + name).getBytes(StandardCharsets.UTF_8)));
+            // 配置改了大小：重建
+            if (bytes == null || bytes.length != bits / 8) {
+                return false;
+            }
+            filter.load(bytes);
+        } finally {
+            filter.loaded();
+        }
+        filter.version = version;
+        filter.ready = true;
+        return true;
+    }
+
+    /**
+     * 用数据库里的全部id重建，调用方保证同一时间只有一个节点在重建
+     *
+     * @param ids 在开始重建之后才查数据库，之前的新增都在里面，之后的新增通过广播补上
+     */
+    public void rebuild(String name, Supplier<Collection<Long>> ids) {
+        Filter filter = filters.get(name);
+        filter.addedWhileRebuilding.clear();
+        filter.rebuilding = true;
+        try {
+            Filter fresh = new Filter(bits);
+            Collection<Long> all = ids.get();
+            for (Long id : all) {
+                fresh.set(offsets(id));
+            }
+            byte[] key = (BLOOM_KEY + name).getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = fresh.toBytes();
+            Long version = stringRedisTemplate.execute((RedisCallback<Long>) connection -> {
+                connection.set(key, bytes);
+                return connection.incr((BLOOM_KEY + name + ":version").getBytes(StandardCharsets.UTF_8));
+            });
+            filter.loading = true;
+            try {
+                filter.load(bytes);
+            } finally {
+                filter.loaded();
+            }
+            filter.version = String.valueOf(version);
+            filter.ready = true;
+            filter.rebuilding = false;
+            // 重建期间的新增：可能不在刚才查出来的id里，Redis和本地都被新位图覆盖掉了
+            Long id;
+            while ((id = filter.addedWhileRebuilding.poll()) != null) {
+                long[] offsets = offsets(id);
+                filter.set(offsets);
+                setBits(name, id, offsets);
+            }
+            log.info("重建布隆过滤器 {}: {}个id", name, all.size());
+        } finally {
+            filter.rebuilding = false;
+        }
+    }
+
+    // 补写Redis并再广播一次：别的节点可能在补写之前就加载了新位图
+    private void setBits(String name, long id, long[] offsets) {
+        String key = BLOOM_KEY + name;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long offset : offsets) {
+                conn.setBit(key, offset, true);
+            }
+            conn.publish(BLOOM_ADD_CHANNEL, name + ":" + id);
+            return null;
+        });
+    }
+
+    // 双重哈希：h1 + i * h2
+    private long[] offsets(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        long[] offsets = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = Math.floorMod(h1 + i * h2, bits);
+        }
+        return offsets;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    static class Filter {
+        // 第j位在 words[j / 64] 的第 j % 64 位
+        private final AtomicLongArray words;
+        private final long bits;
+        private volatile boolean ready;
+        private volatile String version;
+        private volatile boolean rebuilding;
+        private final Queue<Long> addedWhileRebuilding = new ConcurrentLinkedQueue<>();
+        // 正在从Redis加载：这期间的新增（本地位 + offsets）加载完再置一次
+        private volatile boolean loading;
+        private final Queue<long[]> addedWhileLoading = new ConcurrentLinkedQueue<>();
+
+        Filter(long bits) {
+            this.bits = bits;
+            words = new AtomicLongArray((int) ((bits + 63) / 64));
+        }
+
+        // 新增：和load互斥，要么在load之后置位，要么记下来load完再补
+        synchronized void add(long id, long[] offsets) {
+            set(offsets);
+            if (rebuilding) {
+                addedWhileRebuilding.add(id);
+            }
+            if (loading) {
+                addedWhileLoading.add(offsets);
+            }
+        }
+
+        // load结束：补上加载期间的新增
+        synchronized void loaded() {
+            loading = false;
+            long[] offsets;
+            while ((offsets = addedWhileLoading.poll()) != null) {
+                set(offsets);
+            }
+        }
+
+        boolean get(long[] offsets) {
+            for (long offset : offsets) {
+                if ((words.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void set(long[] offsets) {
+            for (long offset : offsets) {
+                int i = (int) (offset >>> 6);
+                long mask = 1L << offset;
+                long word;
+                while (((word = words.get(i)) & mask) == 0 && !words.compareAndSet(i, word, word | mask)) {
+                    // CAS失败重试
+                }
+            }
+        }
+
+        // Redis位图：第j位在第 j / 8 个字节的高位起第 j % 8 位
+        byte[] toBytes() {
+            byte[] bytes = new byte[(int) (bits / 8)];
+            for (int j = 0; j < bits; j++) {
+                if ((words.get(j >>> 6) & (1L << j)) != 0) {
+                    bytes[j >>> 3] |= (byte) (0x80 >>> (j & 7));
+                }
+            }
+            return bytes;
+        }
+
+        // 整个替换成Redis里的位图，重建时删掉的id也就去掉了；加载期间的新增由loaded()补上
+        synchronized void load(byte[] bytes) {
+            for (int i = 0; i < words.length(); i++) {
+                long word = 0;
+                for (int b = 0; b < 64; b++) {
+                    int j = i * 64 + b;
+                    if ((j >>> 3) < bytes.length && (bytes[j >>> 3] & (0x80 >>> (j & 7))) != 0) {
+                        word |= 1L << b;
+                    }
+                }
+                words.set(i, word);
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 本地订单日志（WAL）：Redis不可用时，已经在本地扣了库存的订单先写这里，Redis恢复后由回放任务落库
+ * <p>
+ * 只追加写，按 segmentBytes 切成多个文件 orders-{起始位置}.wal，每个文件整个mmap
+ * 一条记录：[长度 int][CRC32 int][订单id long][userId long][voucherId long]，启动时从最后一个文件开头校验CRC找到写到哪
+ * 写mmap就是写page cache，JVM崩溃不丢；掉电要靠fsync：刷盘线程每 flushIntervalMs 统一force一次（组提交）
+ * sync=true 时追加要等到自己那条刷盘才返回（毫秒级），默认只写mmap（微秒级）
+ * <p>
+ * 回放进度记在 checkpoint 文件里，回放完的文件删除
+ */
+@Slf4j
+@Component
+public class OrderJournal {
+    private static final int PAYLOAD_BYTES = 24;
+    private static final int RECORD_BYTES = 8 + PAYLOAD_BYTES;
+
+    @Value("${hmdp.order.journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hmdp.order.journal.dir:./order-journal}")
+    private String dir;
+
+    @Value("${hmdp.order.journal.segment-bytes:67108864}")
+    private long segmentBytes;
+
+    @Value("${hmdp.order.journal.flush-interval-ms:1}")
+    private long flushIntervalMs;
+
+    @Value("${hmdp.order.journal.sync:false}")
+    private boolean sync;
+
+    // 当前写的文件
+    private MappedByteBuffer segment;
+    // commit() 在回放线程里读
+    private volatile long segmentStart;
+    // 已经写入的位置（全局偏移）
+    private volatile long written;
+    // 已经刷盘的位置
+    private volatile long flushed;
+    // 已经回放的位置
+    private volatile long replayed;
+
+    private final CRC32 crc = new CRC32();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Condition flushDone = flushLock.newCondition();
+    private Thread flusher;
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        File directory = new File(dir);
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("无法创建订单日志目录: " + dir);
+        }
+        replayed = readCheckpoint();
+        List<Long> starts = segmentStarts();
+        long start = starts.isEmpty() ? replayed - replayed % segmentBytes : starts.get(starts.size() - 1);
+        segment = map(start);
+        segmentStart = start;
+        // 找到最后一条完整的记录：长度不对或者CRC不对的是没写完的尾巴
+        int offset = 0;
+        while (offset + RECORD_BYTES <= segmentBytes && isValid(segment, offset)) {
+            offset += RECORD_BYTES;
+        }
+        segment.position(offset);
+        written = segmentStart + offset;
+        flushed = written;
+        if (written > replayed) {
+            log.warn("订单日志有{}条未回放", (written - replayed) / RECORD_BYTES);
+        }
+        flusher = new Thread(this::flushLoop, "order-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (flusher != null) {
+            flusher.interrupt();
+            segment.force();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 追加一条订单
+     *
+     * @return 这条记录之后的位置
+     */
+    public long append(long orderId, long userId, long voucherId) throws IOException {
+        long end;
+        synchronized (this) {
+            if (segment.remaining() < RECORD_BYTES) {
+                roll();
+            }
+            int offset = segment.position();
+            segment.putLong(offset + 8, orderId);
+            segment.putLong(offset + 16, userId);
+            segment.putLong(offset + 24, voucherId);
+            crc.reset();
+            for (int i = offset + 8; i < offset + RECORD_BYTES; i++) {
+                crc.update(segment.get(i));
+            }
+            segment.putInt(offset + 4, (int) crc.getValue());
+            // 长度最后写：读的时候长度对了才看CRC
+            segment.putInt(offset, PAYLOAD_BYTES);
+            segment.position(offset + RECORD_BYTES);
+            end = segmentStart + offset + RECORD_BYTES;
+            written = end;
+        }
+        if (sync) {
+            awaitFlushed(end);
+        }
+        return end;
+    }
+
+    /**
+     * 从回放位置开始读最多max条
+     */
+    public List<long[]> read(int max) throws IOException {
+        List<long[]> records = new ArrayList<>();
+        long position = replayed;
+        long limit = written;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES);
+        while (position < limit && records.size() < max) {
+            long start = position - position % segmentBytes;
+            if (segmentBytes - (position - start) < RECORD_BYTES) {
+                // 文件尾部放不下一条记录的空隙
+                position = start + segmentBytes;
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(file(start).toPath())) {
+                while (position < limit && records.size() < max && segmentBytes - (position - start) >= RECORD_BYTES) {
+                    buffer.clear();
+                    channel.read(buffer, position - start);
+                    if (!isValid(buffer, 0)) {
+                        return records;
+                    }
+                    records.add(new long[]{buffer.getLong(8), buffer.getLong(16), buffer.getLong(24)});
+                    position += RECORD_BYTES;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * 回放完count条：推进checkpoint，删掉已经回放完的文件
+     */
+    public void commit(int count) throws IOException {
+        long position = replayed;
+        for (int i = 0; i < count; i++) {
+            long start = position - position % segmentBytes;
+            if (segmentBytes - (position - start) < RECORD_BYTES) {
+                position = start + segmentBytes;
+            }
+            position += RECORD_BYTES;
+        }
+        writeCheckpoint(position);
+        replayed = position;
+        for (Long start : segmentStarts()) {
+            if (start + segmentBytes <= position && start != segmentStart) {
+                if (!file(start).delete()) {
+                    log.warn("删除订单日志失败: {}", file(start));
+                }
+            }
+        }
+    }
+
+    // 还没回放的条数（估算，跨文件的空隙不算）
+    public long pending() {
+        return Math.max(0, (written - replayed) / RECORD_BYTES);
+    }
+
+    private void roll() throws IOException {
+        segment.force();
+        segmentStart += segmentBytes;
+        segment = map(segmentStart);
+    }
+
+    // 组提交：一次force覆盖这段时间所有的追加
+    private void flushLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushIntervalMs);
+                long target = written;
+                if (target == flushed) {
+                    continue;
+                }
+                MappedByteBuffer current;
+                synchronized (this) {
+                    current = segment;
+                }
+                // 换文件时旧文件已经force过了
+                current.force();
+                flushLock.lock();
+                try {
+                    flushed = target;
+                    flushDone.signalAll();
+                } finally {
+                    flushLock.unlock();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("订单日志刷盘异常", e);
+            }
+        }
+    }
+
+    private void awaitFlushed(long position) throws IOException {
+        flushLock.lock();
+        try {
+            while (flushed < position) {
+                flushDone.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待订单日志刷盘被中断", e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private boolean isValid(ByteBuffer buffer, int offset) {
+        if (buffer.getInt(offset) != PAYLOAD_BYTES) {
+            return false;
+        }
+        CRC32 check = new CRC32();
+        for (int i = offset + 8; i < offset + RECORD_BYTES; i++) {
+            check.update(buffer.get(i));
+        }
+        return buffer.getInt(offset + 4) == (int) check.getValue();
+    }
+
+    private MappedByteBuffer map(long start) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(file(start), "rw")) {
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private File file(long start) {
+        return new File(dir, String.format("orders-%020d.wal", start));
+    }
+
+    private List<Long> segmentStarts() {
+        List<Long> starts = new ArrayList<>();
+        String[] names = new File(dir).list((d, name) -> name.startsWith("orders-") && name.endsWith(".wal"));
+        if (names != null) {
+            for (String name : names) {
+                starts.add(Long.parseLong(name.substring("orders-".length(), name.length() - ".wal".length())));
+            }
+        }
+        starts.sort(Long::compare);
+        return starts;
+    }
+
+    private long readCheckpoint() throws IOException {
+        File file = new File(dir, "checkpoint");
+        if (!file.exists()) {
+            return 0;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.readLong();
+        }
+    }
+
+    private void writeCheckpoint(long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "checkpoint"), "rw")) {
+            raf.writeLong(position);
+            raf.getChannel().force(true);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.hmdp.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 订单环形队列（仿Disruptor）
+ * <p>
+ * 槽位预先分配好：订单id、userId、voucherId 各一个long数组，入队只写数组，不创建对象
+ * 生产者：单生产者只有一个线程写，直接递增序号；多生产者用CAS抢序号，每个槽写完后记下圈数表示已发布
+ * 消费者：一个线程，一次把所有已发布的（最多maxBatch个）一起取走，处理完才推进消费序号
+ * 满了不阻塞生产者，tryPublish直接返回false，由调用方决定拒绝还是重试
+ * <p>
+ * 没有数据时消费者按等待策略等：忙等、让出CPU、睡眠、或者加锁等生产者唤醒
+ */
+public class OrderRingBuffer {
+    public enum WaitStrategy {
+        // 忙等：延迟最低，占满一个核
+        BUSY_SPIN,
+        // 让出CPU
+        YIELDING,
+        // 睡眠100微秒
+        SLEEPING,
+        // 加锁等待，生产者入队后唤醒：CPU占用最低，生产者多一次加锁
+        BLOCKING
+    }
+
+    @FunctionalInterface
+    public interface SlotHandler {
+        void onSlot(long orderId, long userId, long voucherId);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int shift;
+    private final boolean multiProducer;
+    private final WaitStrategy waitStrategy;
+
+    private final long[] orderIds;
+    private final long[] userIds;
+    private final long[] voucherIds;
+
+    // 生产者已经申请到的最大序号
+    private final AtomicLong claimed = new AtomicLong(-1);
+    // 单生产者：已经发布的最大序号
+    private final AtomicLong published = new AtomicLong(-1);
+    // 多生产者：每个槽发布时写入当前圈数（序号 / 容量），消费者据此判断是否已经写完
+    private final AtomicIntegerArray available;
+    // 消费者已经取走的最大序号，生产者最多领先一圈
+    private final AtomicLong consumed = new AtomicLong(-1);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * @param capacity      容量，向上取整到2的幂
+     * @param multiProducer 是否有多个线程同时入队
+     * @param waitStrategy  消费者等待策略
+     */
+    public OrderRingBuffer(int capacity, boolean multiProducer, WaitStrategy waitStrategy) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.shift = Integer.numberOfTrailingZeros(size);
+        this.multiProducer = multiProducer;
+        this.waitStrategy = waitStrategy;
+        this.orderIds = new long[size];
+        this.userIds = new long[size];
+        this.voucherIds = new long[size];
+        if (multiProducer) {
+            int[] rounds = new int[size];
+            Arrays.fill(rounds, -1);
+            this.available = new AtomicIntegerArray(rounds);
+        } else {
+            this.available = null;
+        }
+    }
+
+    /**
+     * 入队
+     *
+     * @return 满了返回false
+     */
+    public boolean tryPublish(long orderId, long userId, long voucherId) {
+        long seq;
+        if (multiProducer) {
+            long current;
+            do {
+                current = claimed.get();
+                seq = current + 1;
+                if (seq - capacity > consumed.get()) {
+                    return false;
+                }
+            } while (!claimed.compareAndSet(current, seq));
+        } else {
+            seq = claimed.get() + 1;
+            if (seq - capacity > consumed.get()) {
+                return false;
+            }
+            claimed.lazySet(seq);
+        }
+        int index = (int) seq & mask;
+        orderIds[index] = orderId;
+        userIds[index] = userId;
+        voucherIds[index] = voucherId;
+        // lazySet保证上面的写先于发布对消费者可见
+        if (multiProducer) {
+            available.lazySet(index, (int) (seq >>> shift));
+        } else {
+            published.lazySet(seq);
+        }
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 取走一批：最多maxBatch个，没有数据时按等待策略最多等timeout
+     *
+     * @return 取走的个数，超时返回0
+     */
+    public int drain(SlotHandler handler, int maxBatch, long timeout, TimeUnit unit) throws InterruptedException {
+        long next = consumed.get() + 1;
+        long end = waitFor(next, unit.toNanos(timeout));
+        if (end < next) {
+            return 0;
+        }
+        end = Math.min(end, next + maxBatch - 1);
+        for (long seq = next; seq <= end; seq++) {
+            int index = (int) seq & mask;
+            handler.onSlot(orderIds[index], userIds[index], voucherIds[index]);
+        }
+        // 处理完才让出槽位
+        consumed.lazySet(end);
+        return (int) (end - next + 1);
+    }
+
+    public int size() {
+        return (int) (claimed.get() - consumed.get());
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // 等到next已经发布，返回连续已发布的最大序号；超时返回next - 1
+    private long waitFor(long next, long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            long highest = highestPublished(next);
+            if (highest >= next) {
+                return highest;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remain = deadline - System.nanoTime();
+            if (remain <= 0) {
+                return next - 1;
+            }
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    break;
+                case YIELDING:
+                    Thread.yield();
+                    break;
+                case SLEEPING:
+                    LockSupport.parkNanos(Math.min(remain, 100_000));
+                    break;
+                default:
+                    lock.lockInterruptibly();
+                    try {
+                        // 加锁后再看一次，避免错过唤醒
+                        if (highestPublished(next) < next) {
+                            notEmpty.awaitNanos(remain);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+            }
+        }
+    }
+
+    private long highestPublished(long next) {
+        if (!multiProducer) {
+            return published.get();
+        }
+        // 多生产者可能乱序写完：从next开始找连续已发布的
+        long limit = claimed.get();
+        long seq = next;
+        while (seq <= limit && available.get((int) seq & mask) == (int) (seq >>> shift)) {
+            seq++;
+        }
+        return seq - 1;
+    }
+}
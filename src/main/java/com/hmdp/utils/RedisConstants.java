@@ -13,12 +13,56 @@ public class RedisConstants {
 
     public static final String CACHE_SHOP_VOUCHER_KEY = "cache:shop:voucher:";
 
-    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+
+    // 店铺类型列表只有一个key：cache:shop:type:all
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type:";
+    public static final Long CACHE_SHOP_TYPE_TTL = 30L;
+
+    // 缓存重建的互斥锁：lock: + 缓存key
+    public static final String CACHE_LOCK_KEY = "lock:";
+    // 缓存失效广播：消息是缓存key，各节点删掉自己的L1
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:channel:invalidate";
+    // 缓存重建完成广播：消息是缓存key，唤醒其他节点等锁的线程
+    public static final String CACHE_REBUILT_CHANNEL = "cache:channel:rebuilt";
+
+    // id布隆过滤器：bloom:{name} 位图，bloom:{name}:version 重建版本号，bloom:{name}:built 上次重建（过期了就该重建）
+    public static final String BLOOM_KEY = "bloom:";
+    // 新增id广播：name:id
+    public static final String BLOOM_ADD_CHANNEL = "bloom:channel:add";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    // 一人一单用bitmap时的key，用intset时是 seckill:order:{id}:{userId % dedupShards}
+    public static final String SECKILL_ORDER_BITS_KEY = "seckill:order:bits:";
+    // 一人一单intset每个分片的目标人数，低于Redis默认的 set-max-intset-entries 512
+    public static final int SECKILL_INTSET_SHARD_SIZE = 400;
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_SOLD_OUT_KEY = "seckill:soldout:";
+    // 订单状态：hash {status: QUEUED / PERSISTED / FAILED, userId: 下单用户}，状态变化广播 orderId:status
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order-status:";
+    public static final String SECKILL_ORDER_STATUS_CHANNEL = "seckill:channel:status";
+    // 各节点租走还没卖掉的库存（本地库存租约）
+    public static final String SECKILL_LEASED_KEY = "seckill:leased:";
+    // 订单支付截止时间 zset：score是截止时间（毫秒），claimed是已经被某个节点领走、正在等时间轮到期的
+    public static final String ORDER_DEADLINE_KEY = "order:deadline";
+    public static final String ORDER_DEADLINE_CLAIMED_KEY = "order:deadline:claimed";
+    // 已落库订单数，等候室按它的增长速度放行
+    public static final String SECKILL_PERSISTED_KEY = "seckill:persisted";
+    // 等候室：开启等候室的券id集合、取号计数、userId -> 排队号、已放行的最大排队号
+    public static final String SECKILL_ROOMS_KEY = "seckill:rooms";
+    public static final String SECKILL_ROOM_TICKET_KEY = "seckill:room:ticket:";
+    public static final String SECKILL_ROOM_USER_KEY = "seckill:room:user:";
+    public static final String SECKILL_ROOM_ADMITTED_KEY = "seckill:room:admitted:";
+    // 秒杀券起止时间 hash: begin/end（epoch秒），以及限流配置、是否开启等候室、一人一单的结构
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    // 售罄/补货广播频道，消息体为优惠券id
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:channel:soldout";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:channel:restock";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FOLLOW_KEY = "follows:";
     public static final String FEED_KEY = "feed:";
@@ -1,13 +1,23 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIDWorker {
     @Resource
@@ -16,18 +26,148 @@ public class RedisIDWorker {
     private static final Long BEGIN_TIMESTAMP = 1640995200L;
     // 生成ID长度
     public static final long COUNT_BIT = 32L;
+    // 序列号key的日期部分，线程安全，不用每次都ofPattern
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    // 号段模式：每次INCRBY预留多少个序列号，0表示关闭（每个ID一次INCR）
+    @Value("${hmdp.id.segment-size:0}")
+    private int segmentSize;
+
+    // 当前号段用到这个比例时异步预取下一段
+    private static final double PREFETCH_RATIO = 0.8;
+
+    // keyPrefix -> 号段缓冲
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    // 异步预取号段
+    private final ExecutorService SEGMENT_LOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "id-segment-loader");
+        t.setDaemon(true);
+        return t;
+    });
 
     // 时间戳32位 （根据日期的）自增id 32位
     public long nextId(String keyPrefix) {
+        if (segmentSize > 0) {
+            return nextIdFromSegment(keyPrefix);
+        }
         // 1.时间戳
         LocalDateTime now = LocalDateTime.now();
-        long currentSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timeStamp = currentSecond - BEGIN_TIMESTAMP;
+        long timeStamp = timestamp(now);
         // 2.序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long count = stringRedisTemplate.opsForValue().increment("inc:" + keyPrefix + date);
+        long count = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, now));
         // 3.拼接
+        return compose(timeStamp, count);
+    }
+
+    /**
+     * 号段模式
+     * <p>
+     * 每个节点用INCRBY在同一个按天计数的key上预留一段序列号，本地用AtomicLong发号
+     * 各节点拿到的号段互不重叠，ID结构不变，也能和逐个INCR、Lua里INCR的ID混用
+     * 号段用到80%时异步预取下一段，跨天时丢弃旧号段
+     */
+    private long nextIdFromSegment(String keyPrefix) {
+        LocalDateTime now = LocalDateTime.now();
+        String key = counterKey(keyPrefix, now);
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.counterKey.equals(key)) {
+                long count = segment.cursor.getAndIncrement();
+                if (count < segment.end) {
+                    if (count == segment.prefetchAt) {
+                        prefetch(buffer, key);
+                    }
+                    return compose(timestamp(now), count);
+                }
+            }
+            // 首次使用、跨天或者号段用完：切到预取好的号段，没有就同步加载
+            synchronized (buffer) {
+                if (buffer.current == segment) {
+                    Segment next = buffer.next;
+                    buffer.next = null;
+                    buffer.current = next != null && next.counterKey.equals(key) ? next : loadSegment(key);
+                }
+            }
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, String key) {
+        if (!buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        SEGMENT_LOADER.execute(() -> {
+            try {
+                Segment next = loadSegment(key);
+                synchronized (buffer) {
+                    // 预取期间号段可能已经用完、同步加载了更靠后的一段，或者跨天了：这一段只能丢掉（序列号空一段），
+                    // 否则切过去ID会变小
+                    Segment current = buffer.current;
+                    if (buffer.next == null && current != null && next.counterKey.equals(current.counterKey)
+                            && next.start >= current.end) {
+                        buffer.next = next;
+                    }
+                }
+            } catch (Exception e) {
+                log.warn("预取号段失败，用完后同步加载: {}", key, e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    // INCRBY key step，返回 [end - step + 1, end]
+    private Segment loadSegment(String key) {
+        Long end = stringRedisTemplate.opsForValue().increment(key, segmentSize);
+        if (end == null) {
+            throw new IllegalStateException("获取号段失败: " + key);
+        }
+        return new Segment(key, end - segmentSize + 1, end + 1, segmentSize);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        SEGMENT_LOADER.shutdownNow();
+    }
+
+    // ID的时间戳部分
+    public long timestamp(LocalDateTime now) {
+        long currentSecond = now.toEpochSecond(ZoneOffset.UTC);
+        return currentSecond - BEGIN_TIMESTAMP;
+    }
+
+    // 序列号按天计数的key：inc:{keyPrefix}yyyy:MM:dd
+    public String counterKey(String keyPrefix, LocalDateTime now) {
+        return "inc:" + keyPrefix + now.format(DATE_FORMATTER);
+    }
+
+    // 拼接：时间戳左移32位 | 序列号
+    public static long compose(long timeStamp, long count) {
         return timeStamp << COUNT_BIT | count;
     }
 
+    // 一段序列号 [start, end)
+    private static class Segment {
+        private final String counterKey;
+        private final AtomicLong cursor;
+        private final long start;
+        private final long end;
+        private final long prefetchAt;
+
+        Segment(String counterKey, long start, long end, int size) {
+            this.counterKey = counterKey;
+            this.cursor = new AtomicLong(start);
+            this.start = start;
+            this.end = end;
+            this.prefetchAt = start + (long) (size * PREFETCH_RATIO);
+        }
+    }
+
+    // 双缓冲：正在用的号段 + 预取好的下一段
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+    }
 }
@@ -0,0 +1,304 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀本地库存租约
+ * <p>
+ * 每个节点用Lua从 seckill:stock:{id} 批量预扣一段库存（最多扣到0），本地用AtomicInteger卖
+ * 本地卖完了再去租下一段，Redis里的库存 + 各节点手里的租约 == 剩余库存，所以不会超卖
+ * 租出去还没卖的数量记在 seckill:leased:{id}，对账时算进Redis库存
+ * 一人一单：本地long集合挡掉同一节点的重复请求，通过的用户再用一次SADD（和发消息在同一个脚本里）做全局判断
+ * <p>
+ * 每段大小按请求速度调整：上一段卖了多久，让下一段大约够卖 targetMs
+ * 节点空闲超过 idleMs 或者关闭时把没卖完的还给Redis
+ * <p>
+ * 起止时间用本地时钟判断；分片库存、配置了限流或者等候室的券需要Redis里的全局状态，不走租约
+ * <p>
+ * 开了本地订单日志时，下单脚本因为Redis连不上失败，已经扣到的本地库存照样卖：订单写日志，Redis恢复后回放
+ * 只卖手里已经租到的，Redis里的库存不会被多卖；跨节点的重复下单在回放落库时被唯一索引挡掉，库存还回去
+ * 这时订单id不经过Redis生成，需要开启号段模式（hmdp.id.segment-size）
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+    private static final DefaultRedisScript<Long> LEASE_TAKE_SCRIPT;
+    private static final DefaultRedisScript<Long> LEASE_ORDER_SCRIPT;
+    private static final DefaultRedisScript<Long> LEASE_RETURN_SCRIPT;
+
+    static {
+        LEASE_TAKE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_TAKE_SCRIPT.setLocation(new ClassPathResource("lua/seckill_lease_take.lua"));
+        LEASE_TAKE_SCRIPT.setResultType(Long.class);
+        LEASE_ORDER_SCRIPT = new DefaultRedisScript<>();
+        LEASE_ORDER_SCRIPT.setLocation(new ClassPathResource("lua/seckill_lease.lua"));
+        LEASE_ORDER_SCRIPT.setResultType(Long.class);
+        LEASE_RETURN_SCRIPT = new DefaultRedisScript<>();
+        LEASE_RETURN_SCRIPT.setLocation(new ClassPathResource("lua/seckill_lease_return.lua"));
+        LEASE_RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    // 券的配置多久重新读一次
+    private static final long CONFIG_TTL_MS = 10000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisIDWorker redisIDWorker;
+
+    @Resource
+    private OrderJournal orderJournal;
+
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hmdp.seckill.lease.min-chunk:1}")
+    private int minChunk;
+
+    @Value("${hmdp.seckill.lease.max-chunk:100}")
+    private int maxChunk;
+
+    // 一段租约大约卖多久
+    @Value("${hmdp.seckill.lease.target-ms:100}")
+    private long targetMs;
+
+    // 多久没有请求就归还租约
+    @Value("${hmdp.seckill.lease.idle-ms:2000}")
+    private long idleMs;
+
+    // voucherId -> 租约
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService LEASE_SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "seckill-lease-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    private void init() {
+        if (enabled) {
+            LEASE_SWEEPER.scheduleWithFixedDelay(this::returnIdleLeases, idleMs, idleMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        LEASE_SWEEPER.shutdownNow();
+        leases.values().forEach(this::returnLease);
+    }
+
+    /**
+     * 用本地租约下单，参数和 seckill_v4.lua 一样
+     *
+     * @return 成功返回订单id，失败返回和 seckill_v4.lua 一样的负数，另外 -7 表示Redis里暂时没有、但别的节点手里还有租约（不能当售罄）；
+     * null 表示这张券不走租约，调用方用秒杀脚本
+     */
+    public Long sell(Long voucherId, Long userId, String... args) {
+        if (!enabled) {
+            return null;
+        }
+        Lease lease = leases.computeIfAbsent(voucherId, Lease::new);
+        long now = System.currentTimeMillis();
+        lease.lastAccess = now;
+        if (now - lease.configLoadedAt > CONFIG_TTL_MS) {
+            try {
+                loadConfig(lease, now);
+            } catch (RuntimeException e) {
+                // Redis连不上：已经加载过的沿用旧配置
+                if (lease.configLoadedAt == 0) {
+                    throw e;
+                }
+            }
+        }
+        if (!lease.eligible) {
+            return null;
+        }
+        if (lease.begin > 0 && now < lease.begin) {
+            return -3L;
+        }
+        if (lease.end > 0 && now > lease.end) {
+            return -4L;
+        }
+        synchronized (lease.buyers) {
+            if (lease.buyers.contains(userId)) {
+                return -1L;
+            }
+        }
+        if (!lease.tryAcquire()) {
+            long granted = refill(lease);
+            if (granted == 0) {
+                return -2L;
+            }
+            if (granted < 0) {
+                return -7L;
+            }
+        }
+        Long res;
+        try {
+            res = stringRedisTemplate.execute(LEASE_ORDER_SCRIPT, Collections.emptyList(), (Object[]) args);
+        } catch (RuntimeException e) {
+            if (orderJournal.isEnabled()) {
+                return sellToJournal(lease, voucherId, userId, e);
+            }
+            // 脚本没执行成功：本地扣的库存还回去
+            lease.stock.incrementAndGet();
+            throw e;
+        }
+        if (res == null || res < 0) {
+            lease.stock.incrementAndGet();
+        }
+        if (res != null && (res > 0 || res == -1)) {
+            synchronized (lease.buyers) {
+                lease.buyers.add(userId);
+            }
+        }
+        return res != null && res > 0 ? RedisIDWorker.compose(Long.parseLong(args[3]), res) : res;
+    }
+
+    // Redis不可用：本地已经扣到的库存写订单日志卖出
+    private Long sellToJournal(Lease lease, Long voucherId, Long userId, RuntimeException cause) {
+        synchronized (lease.buyers) {
+            // 并发的同一个用户只放过一个
+            if (!lease.buyers.add(userId)) {
+                lease.stock.incrementAndGet();
+                return -1L;
+            }
+        }
+        try {
+            long orderId = redisIDWorker.nextId("order");
+            orderJournal.append(orderId, userId, voucherId);
+            return orderId;
+        } catch (Exception e) {
+            // 用户留在本地集合里：宁可这个节点上不让他再下单，也不能重复
+            lease.stock.incrementAndGet();
+            log.error("写订单日志失败: {} {}", voucherId, userId, e);
+            throw cause;
+        }
+    }
+
+    // 券的配置：起止时间、能不能走租约
+    private void loadConfig(Lease lease, long now) {
+        List<Object> window = stringRedisTemplate.opsForHash().multiGet(SECKILL_VOUCHER_KEY + lease.voucherId,
+                Arrays.asList("begin", "end", "rate", "userRate", "room"));
+        Boolean sharded = stringRedisTemplate.hasKey(SECKILL_SHARDS_KEY + lease.voucherId);
+        lease.begin = window.get(0) == null ? 0 : Long.parseLong(window.get(0).toString()) * 1000;
+        lease.end = window.get(1) == null ? 0 : Long.parseLong(window.get(1).toString()) * 1000;
+        lease.eligible = window.get(2) == null && window.get(3) == null && window.get(4) == null
+                && !Boolean.TRUE.equals(sharded);
+        lease.configLoadedAt = now;
+    }
+
+    // 本地卖完了：再租一段，大小按上一段的卖出速度调整
+    // 返回值同 seckill_lease_take.lua：> 0 租到了（已经替调用方扣了一个），0 卖完了，-1 别的节点手里还有
+    private long refill(Lease lease) {
+        synchronized (lease) {
+            if (lease.tryAcquire()) {
+                return 1;
+            }
+            long now = System.currentTimeMillis();
+            int chunk = minChunk;
+            if (lease.lastGranted > 0) {
+                long elapsed = Math.max(1, now - lease.lastRefillAt);
+                chunk = (int) Math.max(minChunk, Math.min(maxChunk, lease.lastGranted * targetMs / elapsed));
+            }
+            Long granted = stringRedisTemplate.execute(LEASE_TAKE_SCRIPT,
+                    Collections.emptyList(), lease.voucherId.toString(), String.valueOf(chunk));
+            lease.lastRefillAt = now;
+            long res = granted == null ? 0 : granted;
+            lease.lastGranted = (int) Math.max(0, res);
+            if (res <= 0) {
+                return res;
+            }
+            // 自己留一个，剩下的放到本地库存
+            lease.stock.addAndGet(lease.lastGranted - 1);
+            return res;
+        }
+    }
+
+    private void returnIdleLeases() {
+        long now = System.currentTimeMillis();
+        leases.values().removeIf(lease -> {
+            if (now - lease.lastAccess < idleMs) {
+                return false;
+            }
+            returnLease(lease);
+            // 已经结束的券连本地的一人一单集合一起丢掉
+            return lease.end > 0 && now > lease.end;
+        });
+    }
+
+    // 没卖完的还给Redis，广播补货：别的节点可能已经因为租不到标记了售罄
+    private void returnLease(Lease lease) {
+        int left = lease.stock.getAndSet(0);
+        if (left <= 0) {
+            return;
+        }
+        try {
+            Long returned = stringRedisTemplate.execute(LEASE_RETURN_SCRIPT,
+                    Collections.emptyList(), lease.voucherId.toString(), String.valueOf(left));
+            if (returned != null && returned > 0) {
+                stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, lease.voucherId.toString());
+            }
+            log.debug("归还库存租约: {} {}", lease.voucherId, left);
+        } catch (Exception e) {
+            // 还不回去就放回本地，下次再还
+            lease.stock.addAndGet(left);
+            log.warn("归还库存租约失败: {} {}", lease.voucherId, left, e);
+        }
+    }
+
+    private static class Lease {
+        private final Long voucherId;
+        // 本地剩余库存
+        private final AtomicInteger stock = new AtomicInteger();
+        // 本节点已经下过单的用户
+        private final LongHashSet buyers = new LongHashSet();
+        private volatile long lastAccess;
+        private volatile long configLoadedAt;
+        private volatile boolean eligible;
+        private volatile long begin;
+        private volatile long end;
+        // 上一次租到多少、什么时候租的，用来估算卖出速度
+        private int lastGranted;
+        private long lastRefillAt;
+
+        Lease(Long voucherId) {
+            this.voucherId = voucherId;
+        }
+
+        // 扣一个本地库存，不会扣成负数
+        boolean tryAcquire() {
+            for (; ; ) {
+                int n = stock.get();
+                if (n <= 0) {
+                    return false;
+                }
+                if (stock.compareAndSet(n, n - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -91,6 +91,14 @@ CREATE TABLE `tb_seckill_voucher`  (
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `begin_time` timestamp NOT NULL DEFAULT '0000-00-00 00:00:00' COMMENT '生效时间',
   `end_time` timestamp NOT NULL DEFAULT '0000-00-00 00:00:00' COMMENT '失效时间',
+  `stock_shards` int(4) NULL DEFAULT NULL COMMENT 'Redis库存分片数',
+  `rate_limit` int(8) NULL DEFAULT NULL COMMENT '每秒放行请求数',
+  `rate_burst` int(8) NULL DEFAULT NULL COMMENT '限流桶容量',
+  `user_rate_limit` int(8) NULL DEFAULT NULL COMMENT '单用户每秒请求数',
+  `user_rate_burst` int(8) NULL DEFAULT NULL COMMENT '单用户限流桶容量',
+  `waiting_room` tinyint(1) NULL DEFAULT NULL COMMENT '是否开启等候室',
+  `dedup_encoding` varchar(16) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NULL DEFAULT NULL COMMENT '一人一单结构：set/bitmap/intset',
+  `dedup_shards` int(4) NULL DEFAULT NULL COMMENT '一人一单intset的分片数',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
   PRIMARY KEY (`voucher_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '秒杀优惠券表，与优惠券是一对一关系' ROW_FORMAT = Compact;
@@ -1274,7 +1282,8 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
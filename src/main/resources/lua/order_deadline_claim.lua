@@ -0,0 +1,30 @@
+-- 领取快到期的订单：从 order:deadline 移到 order:deadline:claimed，由本节点的时间轮到期后取消
+-- claimed 的score是领取超时时间，领走的节点挂了，超时的会被别的节点重新领走
+-- 返回值：订单id, 截止时间, 订单id, 截止时间 ...
+
+local deadlineKey = KEYS[1]
+local claimedKey = KEYS[2]
+-- 领取截止时间在这之前的
+local horizon = ARGV[1]
+local now = tonumber(ARGV[2])
+local claimTtl = tonumber(ARGV[3])
+local limit = tonumber(ARGV[4])
+
+local result = {}
+local due = redis.call('zrangebyscore', deadlineKey, '-inf', horizon, 'WITHSCORES', 'LIMIT', 0, limit)
+for i = 1, #due, 2 do
+    local deadline = tonumber(due[i + 1])
+    redis.call('zrem', deadlineKey, due[i])
+    redis.call('zadd', claimedKey, math.max(deadline, now) + claimTtl, due[i])
+    result[#result + 1] = due[i]
+    result[#result + 1] = due[i + 1]
+end
+
+-- 领取超时的：重新领走，马上到期
+local stale = redis.call('zrangebyscore', claimedKey, '-inf', now, 'LIMIT', 0, limit)
+for i = 1, #stale do
+    redis.call('zadd', claimedKey, now + claimTtl, stale[i])
+    result[#result + 1] = stale[i]
+    result[#result + 1] = tostring(now)
+end
+return result
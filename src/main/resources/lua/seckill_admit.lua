@@ -0,0 +1,41 @@
+-- 等候室放行下一批：admitted += min(allowance, 剩余库存 × overbook)，不超过已经发出的号
+-- 秒杀还没开始不放行
+-- 返回值：放行后的最大排队号
+
+-- 用了TIME之后还有写操作，Redis 5以下需要按效果复制
+redis.replicate_commands()
+
+local voucherId = ARGV[1]
+-- 这一批最多放多少：由订单消费速度决定
+local allowance = tonumber(ARGV[2])
+local overbook = tonumber(ARGV[3])
+local ticketKey = 'seckill:room:ticket:' .. voucherId
+local admittedKey = 'seckill:room:admitted:' .. voucherId
+local windowKey = 'seckill:voucher:' .. voucherId
+
+local admitted = tonumber(redis.call('get', admittedKey)) or 0
+local begin = tonumber(redis.call('hget', windowKey, 'begin'))
+if begin and tonumber(redis.call('time')[1]) < begin then
+    return admitted
+end
+
+local stock = 0
+local shards = tonumber(redis.call('get', 'seckill:shards:' .. voucherId))
+if shards == nil then
+    stock = tonumber(redis.call('get', 'seckill:stock:' .. voucherId)) or 0
+elseif redis.call('exists', 'seckill:soldout:' .. voucherId) == 0 then
+    for i = 0, shards - 1 do
+        stock = stock + (tonumber(redis.call('get', 'seckill:stock:' .. voucherId .. ':' .. i)) or 0)
+    end
+end
+
+local issued = tonumber(redis.call('get', ticketKey)) or 0
+local target = math.min(issued, admitted + math.min(allowance, math.ceil(stock * overbook)))
+if target > admitted then
+    redis.call('set', admittedKey, target)
+    local ttl = redis.call('pttl', windowKey)
+    if ttl > 0 then
+        redis.call('pexpire', admittedKey, ttl)
+    end
+end
+return target
@@ -0,0 +1,49 @@
+-- 本地订单日志回放：订单已经写过数据库了，这里补上当时Redis不可用时没做的那一半
+-- 每条订单一组参数：订单id、userId、voucherId、是否落库成功(1/0)
+-- 落库成功：记一人一单（结构见 seckill_v4.lua），租约里卖掉一个
+-- 落库失败（别的节点已经卖给过这个用户）：租约里的这个库存还给Redis
+-- seckill:journal:{订单id} 保证重复回放只算一次
+-- 返回值：这次真正处理的条数
+
+local function markBought(voucherId, userId)
+    local dedup = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'dedup', 'dedupShards')
+    if dedup[1] == 'bitmap' then
+        redis.call('setbit', 'seckill:order:bits:' .. voucherId, userId, 1)
+    elseif dedup[1] == 'intset' then
+        local shardKey = 'seckill:order:' .. voucherId .. ':' .. (tonumber(userId) % tonumber(dedup[2]))
+        redis.call('sadd', shardKey, userId)
+        if redis.call('scard', shardKey) == 1 then
+            local ttl = redis.call('pttl', 'seckill:voucher:' .. voucherId)
+            if ttl > 0 then
+                redis.call('pexpire', shardKey, ttl)
+            end
+        end
+    else
+        redis.call('sadd', 'seckill:order:' .. voucherId, userId)
+    end
+end
+
+local applied = 0
+for i = 1, #ARGV, 4 do
+    local orderId = ARGV[i]
+    local userId = ARGV[i + 1]
+    local voucherId = ARGV[i + 2]
+    local persisted = ARGV[i + 3] == '1'
+    if redis.call('set', 'seckill:journal:' .. orderId, '1', 'NX', 'EX', 86400) then
+        redis.call('decr', 'seckill:leased:' .. voucherId)
+        if persisted then
+            markBought(voucherId, userId)
+        else
+            local stockKey = 'seckill:stock:' .. voucherId
+            if redis.call('exists', 'seckill:shards:' .. voucherId) == 1 then
+                stockKey = stockKey .. ':0'
+            end
+            if redis.call('exists', stockKey) == 1 then
+                redis.call('incr', stockKey)
+                redis.call('del', 'seckill:soldout:' .. voucherId)
+            end
+        end
+        applied = applied + 1
+    end
+end
+return applied
@@ -0,0 +1,51 @@
+-- 本地库存租约模式的下单：库存已经在本地扣过了，这里只做一人一单、生成订单ID、发消息
+-- 参数和 seckill_v4.lua 一样
+-- 返回值：> 0 序列号；-1 重复下单（调用方把本地扣的库存还回去）
+
+local function composeId(ts, seq)
+    local high = ts * 4294
+    local low = ts * 967296 + seq
+    high = high + math.floor(low / 1000000)
+    low = low % 1000000
+    return string.format('%.0f%06d', high, low)
+end
+
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local streamKey = ARGV[3]
+local timestamp = tonumber(ARGV[4])
+local counterKey = ARGV[5]
+local maxLen = ARGV[6] or '1000000'
+local statusTtl = ARGV[7] or '600'
+
+-- 一人一单，结构见 seckill_v4.lua
+local dedup = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'dedup', 'dedupShards')
+local added
+if dedup[1] == 'bitmap' then
+    added = redis.call('setbit', 'seckill:order:bits:' .. voucherId, userId, 1) == 0
+elseif dedup[1] == 'intset' then
+    local shardKey = 'seckill:order:' .. voucherId .. ':' .. (tonumber(userId) % tonumber(dedup[2]))
+    added = redis.call('sadd', shardKey, userId) == 1
+    if added and redis.call('scard', shardKey) == 1 then
+        local ttl = redis.call('pttl', 'seckill:voucher:' .. voucherId)
+        if ttl > 0 then
+            redis.call('pexpire', shardKey, ttl)
+        end
+    end
+else
+    added = redis.call('sadd', 'seckill:order:' .. voucherId, userId) == 1
+end
+if not added then
+    return -1
+end
+
+-- 租约里卖掉一个
+redis.call('decr', 'seckill:leased:' .. voucherId)
+
+local seq = redis.call('incr', counterKey)
+local id = composeId(timestamp, seq)
+redis.call('hset', 'seckill:order-status:' .. id, 'status', 'QUEUED', 'userId', userId)
+redis.call('expire', 'seckill:order-status:' .. id, statusTtl)
+redis.call("xadd", streamKey, 'MAXLEN', '~', maxLen, '*', 'userId', userId, 'voucherId', voucherId, 'id', id)
+
+return seq
@@ -0,0 +1,18 @@
+-- 归还没卖完的库存租约，清掉售罄标记
+-- 库存key已经过期（秒杀结束）就不用还了，INCRBY会建出一个没有过期时间的key
+-- 返回值：加回Redis库存的数量，0表示秒杀已经结束（调用方据此决定要不要广播补货）
+
+local voucherId = ARGV[1]
+local n = tonumber(ARGV[2])
+local stockKey = 'seckill:stock:' .. voucherId
+local leasedKey = 'seckill:leased:' .. voucherId
+
+if redis.call('exists', leasedKey) == 1 then
+    redis.call('decrby', leasedKey, n)
+end
+if redis.call('exists', stockKey) == 0 then
+    return 0
+end
+redis.call('incrby', stockKey, n)
+redis.call('del', 'seckill:soldout:' .. voucherId)
+return n
@@ -0,0 +1,21 @@
+-- 本地库存租约：从Redis库存里批量预扣一段，最多扣到0，不会扣成负数
+-- 扣到的数量记在 seckill:leased:{id}，对账时算进Redis库存
+-- 返回值：实际扣到的数量；0 真的卖完了；-1 Redis里没有了，但别的节点手里还有租约（之后可能还回来，不能算售罄）
+
+local voucherId = ARGV[1]
+local chunk = tonumber(ARGV[2])
+local stockKey = 'seckill:stock:' .. voucherId
+local leasedKey = 'seckill:leased:' .. voucherId
+
+local stock = tonumber(redis.call('get', stockKey))
+if stock == nil or stock <= 0 then
+    local leased = tonumber(redis.call('get', leasedKey))
+    if leased ~= nil and leased > 0 then
+        return -1
+    end
+    return 0
+end
+local n = math.min(stock, chunk)
+redis.call('decrby', stockKey, n)
+redis.call('incrby', leasedKey, n)
+return n
@@ -0,0 +1,179 @@
+-- 一次买多张秒杀券：先逐张校验（不写），再按模式统一扣减，所有订单放在一条消息里
+-- 每张券的校验和 seckill_v4.lua 一样：起止时间、等候室、限流、一人一单、库存
+-- ALL：有一张不行就都不买；BEST_EFFORT：能买的都买
+-- 返回值：每张券一个结果，> 0 序列号，负数和 seckill_v4.lua 一样
+
+redis.replicate_commands()
+
+local function composeId(ts, seq)
+    local high = ts * 4294
+    local low = ts * 967296 + seq
+    high = high + math.floor(low / 1000000)
+    low = low % 1000000
+    return string.format('%.0f%06d', high, low)
+end
+
+local function refill(bucketKey, rate, burst, nowMs)
+    local bucket = redis.call('hmget', bucketKey, 'tokens', 'ts')
+    local tokens = tonumber(bucket[1]) or burst
+    local ts = tonumber(bucket[2]) or nowMs
+    return math.min(burst, tokens + math.max(0, nowMs - ts) * rate / 1000)
+end
+
+local function take(bucketKey, tokens, rate, burst, nowMs)
+    redis.call('hset', bucketKey, 'tokens', tokens - 1, 'ts', nowMs)
+    redis.call('pexpire', bucketKey, math.ceil(burst * 1000 / rate) + 1000)
+end
+
+local function dedupKey(voucherId, userId, encoding, dedupShards)
+    if encoding == 'bitmap' then
+        return 'seckill:order:bits:' .. voucherId
+    elseif encoding == 'intset' then
+        return 'seckill:order:' .. voucherId .. ':' .. (tonumber(userId) % dedupShards)
+    end
+    return 'seckill:order:' .. voucherId
+end
+
+local userId = ARGV[1]
+local streamKey = ARGV[2]
+local timestamp = tonumber(ARGV[3])
+local counterKey = ARGV[4]
+local maxLen = ARGV[5] or '1000000'
+local statusTtl = ARGV[6] or '600'
+local mode = ARGV[7]
+
+local time = redis.call('time')
+local now = tonumber(time[1])
+local nowMs = now * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 第一遍：只校验，记下要扣的库存key和令牌
+local results = {}
+local plans = {}
+local failed = false
+for i = 8, #ARGV do
+    local voucherId = ARGV[i]
+    local w = redis.call('hmget', 'seckill:voucher:' .. voucherId,
+            'begin', 'end', 'rate', 'burst', 'userRate', 'userBurst', 'room', 'dedup', 'dedupShards')
+    local plan = { voucherId = voucherId, encoding = w[8], dedupShards = tonumber(w[9]) or 1 }
+    local code = 0
+    if w[1] and now < tonumber(w[1]) then
+        code = -3
+    elseif w[1] and now > tonumber(w[2]) then
+        code = -4
+    end
+    if code == 0 and w[7] == '1' then
+        local position = tonumber(redis.call('hget', 'seckill:room:user:' .. voucherId, userId))
+        local admitted = tonumber(redis.call('get', 'seckill:room:admitted:' .. voucherId)) or 0
+        if position == nil or position > admitted then
+            code = -6
+        end
+    end
+    if code == 0 then
+        plan.rate = tonumber(w[3])
+        plan.userRate = tonumber(w[5])
+        if plan.rate then
+            plan.burst = tonumber(w[4]) or plan.rate
+            plan.tokens = refill('seckill:bucket:' .. voucherId, plan.rate, plan.burst, nowMs)
+            if plan.tokens < 1 then
+                code = -5
+            end
+        end
+        if code == 0 and plan.userRate then
+            plan.userBurst = tonumber(w[6]) or plan.userRate
+            plan.userTokens = refill('seckill:bucket:' .. voucherId .. ':' .. userId, plan.userRate, plan.userBurst, nowMs)
+            if plan.userTokens < 1 then
+                code = -5
+            end
+        end
+    end
+    if code == 0 then
+        local key = dedupKey(voucherId, userId, plan.encoding, plan.dedupShards)
+        local bought
+        if plan.encoding == 'bitmap' then
+            bought = redis.call('getbit', key, userId) == 1
+        else
+            bought = redis.call('sismember', key, userId) == 1
+        end
+        if bought then
+            code = -1
+        end
+    end
+    if code == 0 then
+        local stockKey = 'seckill:stock:' .. voucherId
+        local shards = tonumber(redis.call('get', 'seckill:shards:' .. voucherId))
+        if shards == nil then
+            local stock = tonumber(redis.call('get', stockKey))
+            if stock == nil or stock <= 0 then
+                code = -2
+            else
+                plan.stockKey = stockKey
+            end
+        elseif redis.call('exists', 'seckill:soldout:' .. voucherId) == 1 then
+            code = -2
+        else
+            local start = tonumber(userId) % shards
+            for j = 0, shards - 1 do
+                local shardKey = stockKey .. ':' .. ((start + j) % shards)
+                local stock = tonumber(redis.call('get', shardKey))
+                if stock ~= nil and stock > 0 then
+                    plan.stockKey = shardKey
+                    break
+                end
+            end
+            if plan.stockKey == nil then
+                redis.call('set', 'seckill:soldout:' .. voucherId, '1')
+                code = -2
+            end
+        end
+    end
+    results[#results + 1] = code
+    plans[#plans + 1] = plan
+    if code ~= 0 then
+        failed = true
+    end
+end
+
+if failed and mode == 'ALL' then
+    -- 全部不买：没通过校验的保留原因，通过的返回0
+    return results
+end
+
+-- 第二遍：扣令牌、扣库存、记一人一单、生成订单ID
+local orders = {}
+for i = 1, #plans do
+    if results[i] == 0 then
+        local plan = plans[i]
+        local voucherId = plan.voucherId
+        if plan.rate then
+            take('seckill:bucket:' .. voucherId, plan.tokens, plan.rate, plan.burst, nowMs)
+        end
+        if plan.userRate then
+            take('seckill:bucket:' .. voucherId .. ':' .. userId, plan.userTokens, plan.userRate, plan.userBurst, nowMs)
+        end
+        redis.call('incrby', plan.stockKey, -1)
+        local key = dedupKey(voucherId, userId, plan.encoding, plan.dedupShards)
+        if plan.encoding == 'bitmap' then
+            redis.call('setbit', key, userId, 1)
+        else
+            redis.call('sadd', key, userId)
+            if plan.encoding == 'intset' and redis.call('scard', key) == 1 then
+                local ttl = redis.call('pttl', 'seckill:voucher:' .. voucherId)
+                if ttl > 0 then
+                    redis.call('pexpire', key, ttl)
+                end
+            end
+        end
+        local seq = redis.call('incr', counterKey)
+        local id = composeId(timestamp, seq)
+        redis.call('hset', 'seckill:order-status:' .. id, 'status', 'QUEUED', 'userId', userId)
+        redis.call('expire', 'seckill:order-status:' .. id, statusTtl)
+        orders[#orders + 1] = voucherId .. ':' .. id
+        results[i] = seq
+    end
+end
+
+-- 所有订单一条消息：orders = voucherId:orderId,voucherId:orderId...
+if #orders > 0 then
+    redis.call('xadd', streamKey, 'MAXLEN', '~', maxLen, '*', 'userId', userId, 'orders', table.concat(orders, ','))
+end
+return results
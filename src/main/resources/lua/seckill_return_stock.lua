@@ -0,0 +1,16 @@
+-- 取消订单的库存加回Redis：分片库存加在第0个分片上，清掉售罄标记
+-- 库存key已经过期（秒杀结束）就不加了，INCRBY会建出一个没有过期时间的key
+-- 返回值：1 加回去了；0 秒杀已经结束
+
+local voucherId = ARGV[1]
+local n = tonumber(ARGV[2])
+local stockKey = 'seckill:stock:' .. voucherId
+if redis.call('exists', 'seckill:shards:' .. voucherId) == 1 then
+    stockKey = stockKey .. ':0'
+end
+if redis.call('exists', stockKey) == 0 then
+    return 0
+end
+redis.call('incrby', stockKey, n)
+redis.call('del', 'seckill:soldout:' .. voucherId)
+return 1
@@ -0,0 +1,31 @@
+-- 撤销一次已经在Redis里成功的秒杀（seckill_v4.lua，订单没能入队或者没能落库）：库存加回去，用户从一人一单里去掉
+-- ARGV: voucherId, userId, [orderId：删掉脚本写的订单状态]
+-- 库存：分片库存加在第0个分片上；库存key已经过期（秒杀结束）就不加了；清掉售罄标记（同 seckill_return_stock.lua）
+-- 一人一单：按券的结构（set / bitmap / intset，见 seckill_v4.lua）
+-- 返回值：1 库存加回去了；0 秒杀已经结束
+
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+if ARGV[3] then
+    redis.call('del', 'seckill:order-status:' .. ARGV[3])
+end
+
+local dedup = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'dedup', 'dedupShards')
+if dedup[1] == 'bitmap' then
+    redis.call('setbit', 'seckill:order:bits:' .. voucherId, userId, 0)
+elseif dedup[1] == 'intset' then
+    redis.call('srem', 'seckill:order:' .. voucherId .. ':' .. (tonumber(userId) % (tonumber(dedup[2]) or 1)), userId)
+else
+    redis.call('srem', 'seckill:order:' .. voucherId, userId)
+end
+
+local stockKey = 'seckill:stock:' .. voucherId
+if redis.call('exists', 'seckill:shards:' .. voucherId) == 1 then
+    stockKey = stockKey .. ':0'
+end
+if redis.call('exists', stockKey) == 0 then
+    return 0
+end
+redis.call('incr', stockKey)
+redis.call('del', 'seckill:soldout:' .. voucherId)
+return 1
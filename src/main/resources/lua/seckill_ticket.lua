@@ -0,0 +1,48 @@
+-- 秒杀排队取号：一人一个号，号码由INCR生成，单调递增
+-- 返回值：> 0 排队号；-2 库存不足；-3 前面排队的人已经够把剩余库存买完，不用再排了
+
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+-- 放号上限：排队未放行人数 < 剩余库存 × overbook（有人放行了也不买，要多放一些号）
+local overbook = tonumber(ARGV[3])
+local ticketKey = 'seckill:room:ticket:' .. voucherId
+local userKey = 'seckill:room:user:' .. voucherId
+local admittedKey = 'seckill:room:admitted:' .. voucherId
+
+-- 剩余库存：分片库存要加起来
+local stock = 0
+local shards = tonumber(redis.call('get', 'seckill:shards:' .. voucherId))
+if shards == nil then
+    stock = tonumber(redis.call('get', 'seckill:stock:' .. voucherId)) or 0
+elseif redis.call('exists', 'seckill:soldout:' .. voucherId) == 0 then
+    for i = 0, shards - 1 do
+        stock = stock + (tonumber(redis.call('get', 'seckill:stock:' .. voucherId .. ':' .. i)) or 0)
+    end
+end
+if stock <= 0 then
+    return -2
+end
+
+-- 已经取过号：直接返回原来的号
+local position = redis.call('hget', userKey, userId)
+if position then
+    return tonumber(position)
+end
+
+local issued = tonumber(redis.call('get', ticketKey)) or 0
+local admitted = tonumber(redis.call('get', admittedKey)) or 0
+if issued - admitted >= stock * overbook then
+    return -3
+end
+
+position = redis.call('incr', ticketKey)
+redis.call('hset', userKey, userId, position)
+-- 第一个号：排队数据跟秒杀券一起过期
+if position == 1 then
+    local ttl = redis.call('pttl', 'seckill:voucher:' .. voucherId)
+    if ttl > 0 then
+        redis.call('pexpire', ticketKey, ttl)
+        redis.call('pexpire', userKey, ttl)
+    end
+end
+return position
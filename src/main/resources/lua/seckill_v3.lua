@@ -3,29 +3,61 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 新增orderId，但是变量名用id就好，因为VoucherOrder实体类中的orderId就是用id表示的
 local id = ARGV[3]
+-- 订单流（分区），不传则用stream.orders
+local streamKey = ARGV[4] or 'stream.orders'
+-- 流的近似长度上限（XADD MAXLEN ~），兜底防止内存无限增长
+local maxLen = ARGV[5] or '1000000'
 local stockKey = 'seckill:stock:' .. voucherId
 local orderKey = 'seckill:order:' .. voucherId
+-- 分片数：没有这个key说明库存没分片
+local shardsKey = 'seckill:shards:' .. voucherId
+-- 分片库存全部卖完的标记
+local soldOutKey = 'seckill:soldout:' .. voucherId
 
 -- 判下单
 if (redis.call('sismember', orderKey, userId) == 1) then
     return 1
 end
 
--- 判库存
-local stock = tonumber(redis.call('get', stockKey))
-if stock == nil then -- 处理stock为nil的情况: 没有优惠卷数据
-    return 2
+local shards = tonumber(redis.call('get', shardsKey))
+if shards == nil then
+    -- 判库存
+    local stock = tonumber(redis.call('get', stockKey))
+    if stock == nil then -- 处理stock为nil的情况: 没有优惠卷数据
+        return 2
+    else
+        if (stock <= 0) then
+            return 2
+        end
+    end
+    -- 扣减
+    redis.call('incrby', stockKey, -1)
 else
-    if (stock <= 0) then
+    -- 分片库存：已经整体卖完就不用再挨个探测分片了
+    if (redis.call('exists', soldOutKey) == 1) then
+        return 2
+    end
+    -- 按userId哈希选起始分片，没货了依次往后找
+    local start = tonumber(userId) % shards
+    local picked = nil
+    for i = 0, shards - 1 do
+        local shardKey = stockKey .. ':' .. ((start + i) % shards)
+        local stock = tonumber(redis.call('get', shardKey))
+        if stock ~= nil and stock > 0 then
+            picked = shardKey
+            break
+        end
+    end
+    if picked == nil then
+        redis.call('set', soldOutKey, '1')
         return 2
     end
+    -- 扣减
+    redis.call('incrby', picked, -1)
 end
-
--- 扣减
-redis.call('incrby', stockKey, -1)
 redis.call('sadd', orderKey, userId)
 
 -- 存到消息队列中
-redis.call("xadd", 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', id)
+redis.call("xadd", streamKey, 'MAXLEN', '~', maxLen, '*', 'userId', userId, 'voucherId', voucherId, 'id', id)
 
 return 0
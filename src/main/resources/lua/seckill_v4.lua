@@ -0,0 +1,195 @@
+-- 完成逻辑：判断一人一单、预减库存、生成订单ID
+-- 和v3的区别：订单ID的序列号在脚本里INCR，只有通过校验的请求才消耗序列号，一次请求只有一次Redis往返
+-- 返回值：> 0 序列号（Java侧拼成订单ID）；-1 重复下单；-2 库存不足；-3 未开始；-4 已结束；-5 限流；-6 等候室还没放行
+
+-- 用了TIME之后还有写操作，Redis 5以下需要按效果复制
+redis.replicate_commands()
+
+-- Lua数字是double，timestamp * 2^32 会超过2^53丢精度，这里拆成两段按十进制拼接
+-- 2^32 = 4294 * 10^6 + 967296
+local function composeId(ts, seq)
+    local high = ts * 4294
+    local low = ts * 967296 + seq
+    high = high + math.floor(low / 1000000)
+    low = low % 1000000
+    return string.format('%.0f%06d', high, low)
+end
+
+-- 令牌桶：按上次的令牌数和时间（毫秒）补充，返回当前令牌数
+local function refill(bucketKey, rate, burst, nowMs)
+    local bucket = redis.call('hmget', bucketKey, 'tokens', 'ts')
+    local tokens = tonumber(bucket[1]) or burst
+    local ts = tonumber(bucket[2]) or nowMs
+    return math.min(burst, tokens + math.max(0, nowMs - ts) * rate / 1000)
+end
+
+-- 扣一个令牌写回，桶补满之后就没必要留着了
+local function take(bucketKey, tokens, rate, burst, nowMs)
+    redis.call('hset', bucketKey, 'tokens', tokens - 1, 'ts', nowMs)
+    redis.call('pexpire', bucketKey, math.ceil(burst * 1000 / rate) + 1000)
+end
+
+-- 一人一单的结构，按券配置：
+-- set（默认）：seckill:order:{id}，userId字符串的集合
+-- bitmap：seckill:order:bits:{id}，第userId位，和买家人数无关，只和最大userId有关
+-- intset：seckill:order:{id}:{userId % shards}，每个分片的整数成员不超过set-max-intset-entries，Redis用intset存
+local function hasBought(voucherId, userId, encoding, dedupShards)
+    if encoding == 'bitmap' then
+        return redis.call('getbit', 'seckill:order:bits:' .. voucherId, userId) == 1
+    elseif encoding == 'intset' then
+        return redis.call('sismember', 'seckill:order:' .. voucherId .. ':' .. (tonumber(userId) % dedupShards), userId) == 1
+    end
+    return redis.call('sismember', 'seckill:order:' .. voucherId, userId) == 1
+end
+
+local function markBought(voucherId, userId, encoding, dedupShards)
+    if encoding == 'bitmap' then
+        redis.call('setbit', 'seckill:order:bits:' .. voucherId, userId, 1)
+    elseif encoding == 'intset' then
+        local shardKey = 'seckill:order:' .. voucherId .. ':' .. (tonumber(userId) % dedupShards)
+        redis.call('sadd', shardKey, userId)
+        -- 新建的分片跟秒杀券一起过期：分片key的名字清理任务不一定知道
+        if redis.call('scard', shardKey) == 1 then
+            local ttl = redis.call('pttl', 'seckill:voucher:' .. voucherId)
+            if ttl > 0 then
+                redis.call('pexpire', shardKey, ttl)
+            end
+        end
+    else
+        redis.call('sadd', 'seckill:order:' .. voucherId, userId)
+    end
+end
+
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+-- 订单流（分区）；空串表示订单由调用方放进本地队列（v2），不发消息
+local streamKey = ARGV[3]
+-- ID的时间戳部分，和RedisIDWorker一致：当前秒数 - BEGIN_TIMESTAMP
+local timestamp = tonumber(ARGV[4])
+-- ID的序列号key：inc:order:yyyy:MM:dd
+local counterKey = ARGV[5]
+-- 流的近似长度上限（XADD MAXLEN ~），兜底防止内存无限增长
+local maxLen = ARGV[6] or '1000000'
+-- 订单状态缓存的过期时间（秒）
+local statusTtl = ARGV[7] or '600'
+local stockKey = 'seckill:stock:' .. voucherId
+-- 分片数：没有这个key说明库存没分片
+local shardsKey = 'seckill:shards:' .. voucherId
+-- 分片库存全部卖完的标记
+local soldOutKey = 'seckill:soldout:' .. voucherId
+
+-- 起止时间和限流配置放在同一个hash里，一次读出来
+local window = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'begin', 'end', 'rate', 'burst', 'userRate', 'userBurst', 'room', 'dedup', 'dedupShards')
+local rate = tonumber(window[3])
+local userRate = tonumber(window[5])
+local time = nil
+if window[1] or rate or userRate then
+    time = redis.call('time')
+end
+
+-- 判时间：用Redis服务器时间，不查数据库；没有预热起止时间的券不判断
+if window[1] then
+    local now = tonumber(time[1])
+    if now < tonumber(window[1]) then
+        return -3
+    end
+    if now > tonumber(window[2]) then
+        return -4
+    end
+end
+
+-- 等候室：只有排队号已经放行的用户才能下单
+if window[7] == '1' then
+    local position = tonumber(redis.call('hget', 'seckill:room:user:' .. voucherId, userId))
+    local admitted = tonumber(redis.call('get', 'seckill:room:admitted:' .. voucherId)) or 0
+    if position == nil or position > admitted then
+        return -6
+    end
+end
+
+-- 限流：在判库存之前，按券一个桶，可选再按用户一个桶；两个桶都有令牌才一起扣
+if rate or userRate then
+    local nowMs = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    local bucketKey = 'seckill:bucket:' .. voucherId
+    local userBucketKey = bucketKey .. ':' .. userId
+    local burst = tonumber(window[4]) or rate
+    local userBurst = tonumber(window[6]) or userRate
+    local tokens, userTokens
+    if rate then
+        tokens = refill(bucketKey, rate, burst, nowMs)
+        if tokens < 1 then
+            return -5
+        end
+    end
+    if userRate then
+        userTokens = refill(userBucketKey, userRate, userBurst, nowMs)
+        if userTokens < 1 then
+            return -5
+        end
+    end
+    if rate then
+        take(bucketKey, tokens, rate, burst, nowMs)
+    end
+    if userRate then
+        take(userBucketKey, userTokens, userRate, userBurst, nowMs)
+    end
+end
+
+-- 判下单
+local encoding = window[8]
+local dedupShards = tonumber(window[9]) or 1
+if hasBought(voucherId, userId, encoding, dedupShards) then
+    return -1
+end
+
+local shards = tonumber(redis.call('get', shardsKey))
+if shards == nil then
+    -- 判库存
+    local stock = tonumber(redis.call('get', stockKey))
+    if stock == nil then -- 处理stock为nil的情况: 没有优惠卷数据
+        return -2
+    else
+        if (stock <= 0) then
+            return -2
+        end
+    end
+    -- 扣减
+    redis.call('incrby', stockKey, -1)
+else
+    -- 分片库存：已经整体卖完就不用再挨个探测分片了
+    if (redis.call('exists', soldOutKey) == 1) then
+        return -2
+    end
+    -- 按userId哈希选起始分片，没货了依次往后找
+    local start = tonumber(userId) % shards
+    local picked = nil
+    for i = 0, shards - 1 do
+        local shardKey = stockKey .. ':' .. ((start + i) % shards)
+        local stock = tonumber(redis.call('get', shardKey))
+        if stock ~= nil and stock > 0 then
+            picked = shardKey
+            break
+        end
+    end
+    if picked == nil then
+        redis.call('set', soldOutKey, '1')
+        return -2
+    end
+    -- 扣减
+    redis.call('incrby', picked, -1)
+end
+markBought(voucherId, userId, encoding, dedupShards)
+
+-- 生成订单ID：时间戳左移32位 | 序列号
+local seq = redis.call('incr', counterKey)
+local id = composeId(timestamp, seq)
+-- 订单状态：排队中，消费者落库后改成PERSISTED/FAILED；记下下单用户，查询时校验
+redis.call('hset', 'seckill:order-status:' .. id, 'status', 'QUEUED', 'userId', userId)
+redis.call('expire', 'seckill:order-status:' .. id, statusTtl)
+
+-- 存到消息队列中
+if streamKey ~= '' then
+    redis.call("xadd", streamKey, 'MAXLEN', '~', maxLen, '*', 'userId', userId, 'voucherId', voucherId, 'id', id)
+end
+
+return seq
@@ -0,0 +1,114 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderRingBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地订单队列：ArrayBlockingQueue vs 环形队列（多生产者，各种等待策略）
+ * Throughput 看入队吞吐，SampleTime 看入队延迟的p99
+ * 后台一个消费线程按批取走（和VoucherOrderServiceImpl的本地消费一样），满了生产者自旋重试
+ * 不需要Redis，直接运行main：线程数1、4、16各跑一轮
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class OrderQueueBenchmark {
+    private static final int CAPACITY = 1024 * 1024;
+    private static final int BATCH = 256;
+
+    @Param({"abq", "ring-BLOCKING", "ring-SLEEPING", "ring-YIELDING", "ring-BUSY_SPIN"})
+    public String queue;
+
+    private BlockingQueue<VoucherOrder> blockingQueue;
+    private OrderRingBuffer ring;
+    private Thread consumer;
+    private final AtomicLong ids = new AtomicLong();
+
+    @Setup
+    public void setup() {
+        if ("abq".equals(queue)) {
+            blockingQueue = new ArrayBlockingQueue<>(CAPACITY);
+            consumer = new Thread(() -> {
+                List<VoucherOrder> batch = new ArrayList<>(BATCH);
+                try {
+                    while (true) {
+                        batch.add(blockingQueue.take());
+                        blockingQueue.drainTo(batch, BATCH - 1);
+                        batch.clear();
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+        } else {
+            ring = new OrderRingBuffer(CAPACITY, true,
+                    OrderRingBuffer.WaitStrategy.valueOf(queue.substring("ring-".length())));
+            consumer = new Thread(() -> {
+                List<VoucherOrder> batch = new ArrayList<>(BATCH);
+                OrderRingBuffer.SlotHandler collector = (orderId, userId, voucherId) -> {
+                    VoucherOrder voucherOrder = new VoucherOrder();
+                    voucherOrder.setId(orderId);
+                    voucherOrder.setUserId(userId);
+                    voucherOrder.setVoucherId(voucherId);
+                    batch.add(voucherOrder);
+                };
+                try {
+                    while (true) {
+                        ring.drain(collector, BATCH, 100, TimeUnit.MILLISECONDS);
+                        batch.clear();
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        consumer.interrupt();
+        consumer.join(1000);
+    }
+
+    @Benchmark
+    public void enqueue() {
+        long id = ids.incrementAndGet();
+        if (blockingQueue != null) {
+            // 和v2原来的做法一样：每个请求创建一个订单对象
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(id);
+            voucherOrder.setUserId(id);
+            voucherOrder.setVoucherId(1L);
+            while (!blockingQueue.offer(voucherOrder)) {
+                Thread.yield();
+            }
+        } else {
+            while (!ring.tryPublish(id, id, 1L)) {
+                Thread.yield();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 4, 16}) {
+            new Runner(new OptionsBuilder()
+                    .include(OrderQueueBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
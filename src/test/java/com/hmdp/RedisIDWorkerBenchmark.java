@@ -0,0 +1,59 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIDWorker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 逐个INCR vs 号段模式 发号吞吐
+ * 需要本地Redis，直接运行main：线程数1、4、16、64各跑一轮
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class RedisIDWorkerBenchmark {
+    // 0：每个ID一次INCR；1000：号段模式
+    @Param({"0", "1000"})
+    public int segmentSize;
+
+    private LettuceConnectionFactory connectionFactory;
+    private RedisIDWorker redisIDWorker;
+
+    @Setup
+    public void setup() {
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        connectionFactory.afterPropertiesSet();
+        redisIDWorker = new RedisIDWorker();
+        ReflectionTestUtils.setField(redisIDWorker, "stringRedisTemplate", new StringRedisTemplate(connectionFactory));
+        ReflectionTestUtils.setField(redisIDWorker, "segmentSize", segmentSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public long nextId() {
+        return redisIDWorker.nextId("bench");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 4, 16, 64}) {
+            new Runner(new OptionsBuilder()
+                    .include(RedisIDWorkerBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.hmdp;
+
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisIDWorker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 逐条落库 vs 批量落库 吞吐（订单/毫秒）
+ * 需要本地MySQL和Redis，直接运行main；每轮新建一张库存足够的秒杀券，每个订单一个新用户
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class SeckillBatchBenchmark {
+    private static final int BATCH = 200;
+
+    private ConfigurableApplicationContext context;
+    private IVoucherOrderService voucherOrderService;
+    private RedisIDWorker redisIDWorker;
+    private Long voucherId;
+    private long userId;
+    private List<VoucherOrder> lastBatch;
+
+    @Setup
+    public void setup() {
+        context = new SpringApplicationBuilder(HmDianPingApplication.class).web(WebApplicationType.NONE).run();
+        voucherOrderService = context.getBean(IVoucherOrderService.class);
+        redisIDWorker = context.getBean(RedisIDWorker.class);
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("批量压测券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(100L);
+        voucher.setType(1);
+        voucher.setStock(Integer.MAX_VALUE);
+        voucher.setBeginTime(LocalDateTime.now());
+        voucher.setEndTime(LocalDateTime.now().plusDays(1));
+        context.getBean(IVoucherService.class).addSeckillVoucher(voucher);
+        voucherId = voucher.getId();
+    }
+
+    @TearDown
+    public void tearDown() {
+        try {
+            // 重放同一批：插入全部被忽略，库存不再扣
+            if (lastBatch != null && voucherOrderService.CreateVoucherOrder_batch(lastBatch) != 0) {
+                throw new IllegalStateException("重放的批次又插入了订单");
+            }
+        } finally {
+            context.close();
+        }
+    }
+
+    @Benchmark
+    public void single() {
+        voucherOrderService.CreateVoucherOrder_v2(nextOrder());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int batch() {
+        List<VoucherOrder> orders = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            orders.add(nextOrder());
+        }
+        lastBatch = orders;
+        return voucherOrderService.CreateVoucherOrder_batch(orders);
+    }
+
+    private VoucherOrder nextOrder() {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(redisIDWorker.nextId("order"));
+        order.setUserId(++userId);
+        order.setVoucherId(voucherId);
+        return order;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SeckillBatchBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,103 @@
+package com.hmdp;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.*;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 一人一单的三种结构：set / bitmap / intset
+ * 每种结构先写入一百万个买家，报告Redis内存，再跑秒杀脚本报告延迟
+ * 需要本地Redis，直接运行main；userId是连续的1..N，bitmap的内存只和最大userId有关
+ */
+public class SeckillDedupBenchmark {
+    private static final int BUYERS = 1_000_000;
+    private static final int SCRIPT_CALLS = 100_000;
+    private static final long VOUCHER_ID = 990001L;
+
+    public static void main(String[] args) {
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        connectionFactory.afterPropertiesSet();
+        StringRedisTemplate redis = new StringRedisTemplate(connectionFactory);
+        redis.afterPropertiesSet();
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("lua/seckill_v4.lua"));
+        script.setResultType(Long.class);
+
+        for (String encoding : new String[]{"set", "bitmap", "intset"}) {
+            int dedupShards = (BUYERS + SCRIPT_CALLS + SECKILL_INTSET_SHARD_SIZE - 1) / SECKILL_INTSET_SHARD_SIZE;
+            List<String> keys = dedupKeys(encoding, dedupShards);
+            redis.delete(keys);
+            redis.delete(Arrays.asList(SECKILL_VOUCHER_KEY + VOUCHER_ID, SECKILL_STOCK_KEY + VOUCHER_ID,
+                    "bench:stream", "bench:counter"));
+            Map<String, String> config = new HashMap<>();
+            config.put("dedup", encoding);
+            config.put("dedupShards", String.valueOf(dedupShards));
+            redis.opsForHash().putAll(SECKILL_VOUCHER_KEY + VOUCHER_ID, config);
+            redis.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, String.valueOf(SCRIPT_CALLS));
+
+            // 写入买家：管道，每批一万
+            for (int from = 1; from <= BUYERS; from += 10_000) {
+                int start = from;
+                redis.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (long userId = start; userId < start + 10_000 && userId <= BUYERS; userId++) {
+                        if ("bitmap".equals(encoding)) {
+                            conn.setBit(SECKILL_ORDER_BITS_KEY + VOUCHER_ID, userId, true);
+                        } else if ("intset".equals(encoding)) {
+                            conn.sAdd(SECKILL_ORDER_KEY + VOUCHER_ID + ":" + (userId % dedupShards), String.valueOf(userId));
+                        } else {
+                            conn.sAdd(SECKILL_ORDER_KEY + VOUCHER_ID, String.valueOf(userId));
+                        }
+                    }
+                    return null;
+                });
+            }
+            long memory = 0;
+            for (String key : keys) {
+                Long usage = redis.execute((RedisCallback<Long>) connection ->
+                        (Long) connection.execute("MEMORY", "USAGE".getBytes(), key.getBytes()));
+                memory += usage == null ? 0 : usage;
+            }
+
+            // 脚本延迟：新买家下单
+            long[] latencies = new long[SCRIPT_CALLS];
+            for (int i = 0; i < SCRIPT_CALLS; i++) {
+                long begin = System.nanoTime();
+                redis.execute(script, Collections.emptyList(),
+                        String.valueOf(VOUCHER_ID), String.valueOf(BUYERS + 1 + i), "bench:stream",
+                        "1", "bench:counter", "1000", "60");
+                latencies[i] = System.nanoTime() - begin;
+            }
+            Arrays.sort(latencies);
+            System.out.printf("%-6s 内存/百万买家: %.2f MB  脚本延迟 p50=%dus p99=%dus%n",
+                    encoding, memory / 1024.0 / 1024.0 * 1_000_000 / BUYERS,
+                    latencies[SCRIPT_CALLS / 2] / 1000, latencies[SCRIPT_CALLS * 99 / 100] / 1000);
+
+            redis.delete(keys);
+            redis.delete(Arrays.asList(SECKILL_VOUCHER_KEY + VOUCHER_ID, SECKILL_STOCK_KEY + VOUCHER_ID,
+                    "bench:stream", "bench:counter"));
+        }
+        connectionFactory.destroy();
+    }
+
+    private static List<String> dedupKeys(String encoding, int dedupShards) {
+        if ("bitmap".equals(encoding)) {
+            return Collections.singletonList(SECKILL_ORDER_BITS_KEY + VOUCHER_ID);
+        }
+        if ("intset".equals(encoding)) {
+            List<String> keys = new ArrayList<>(dedupShards);
+            for (int i = 0; i < dedupShards; i++) {
+                keys.add(SECKILL_ORDER_KEY + VOUCHER_ID + ":" + i);
+            }
+            return keys;
+        }
+        return Collections.singletonList(SECKILL_ORDER_KEY + VOUCHER_ID);
+    }
+}
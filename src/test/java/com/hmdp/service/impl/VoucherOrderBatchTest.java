@@ -0,0 +1,106 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * 批量落库：批内重复的订单不落库，Redis里多扣的库存ACK之后还回去
+ */
+@SuppressWarnings("unchecked")
+public class VoucherOrderBatchTest {
+    private static final String STREAM = "stream.orders";
+
+    private final RedisScript<?> returnStockScript =
+            (RedisScript<?>) ReflectionTestUtils.getField(VoucherOrderServiceImpl.class, "RETURN_STOCK_SCRIPT");
+
+    private VoucherOrderServiceImpl service;
+    private StringRedisTemplate stringRedisTemplate;
+    private StreamOperations<String, Object, Object> streamOps;
+    private IVoucherOrderService proxy;
+
+    @Before
+    public void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        streamOps = mock(StreamOperations.class);
+        when(stringRedisTemplate.opsForStream()).thenReturn(streamOps);
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any(), any())).thenReturn(1L);
+        proxy = mock(IVoucherOrderService.class);
+
+        service = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(service, "proxy", proxy);
+        ReflectionTestUtils.setField(service, "statusTtlSeconds", 600L);
+    }
+
+    @Test
+    public void duplicateInBatchReturnsStockAfterAck() {
+        when(proxy.CreateVoucherOrder_batch(anyList())).thenReturn(2);
+        List<MapRecord<String, Object, Object>> records = Arrays.asList(
+                record("1-0", 7, 2, 100),
+                record("1-1", 8, 2, 101),
+                // 同一个用户同一张券的第二单
+                record("1-2", 7, 2, 102));
+
+        ReflectionTestUtils.invokeMethod(service, "handleVoucherOrderBatch", STREAM, records);
+
+        ArgumentCaptor<List<VoucherOrder>> persisted = ArgumentCaptor.forClass(List.class);
+        verify(proxy).CreateVoucherOrder_batch(persisted.capture());
+        assertEquals(Arrays.asList(100L, 101L), ids(persisted.getValue()));
+        // 先ACK整批再还库存，一人一单不动
+        InOrder inOrder = inOrder(streamOps, stringRedisTemplate);
+        inOrder.verify(streamOps).acknowledge(STREAM, "g1", RecordId.of("1-0"), RecordId.of("1-1"), RecordId.of("1-2"));
+        inOrder.verify(stringRedisTemplate).execute(same(returnStockScript), eq(Collections.emptyList()), eq("2"), eq("1"));
+        verify(stringRedisTemplate).convertAndSend(SECKILL_RESTOCK_CHANNEL, "2");
+        // 批内的状态：保留的和去掉的各发布一次
+        verify(stringRedisTemplate, times(2)).executePipelined(any(RedisCallback.class));
+    }
+
+    @Test
+    public void redeliveredRecordIsNotADuplicate() {
+        when(proxy.CreateVoucherOrder_batch(anyList())).thenReturn(1);
+        // 同一条消息投递了两次：订单id相同，不算重复下单
+        List<MapRecord<String, Object, Object>> records = Arrays.asList(
+                record("1-0", 7, 2, 100),
+                record("1-0", 7, 2, 100));
+
+        ReflectionTestUtils.invokeMethod(service, "handleVoucherOrderBatch", STREAM, records);
+
+        verify(stringRedisTemplate, never()).execute(any(RedisScript.class), anyList(), any(), any());
+        verify(stringRedisTemplate, never()).convertAndSend(anyString(), any());
+    }
+
+    private static MapRecord<String, Object, Object> record(String id, long userId, long voucherId, long orderId) {
+        Map<Object, Object> value = new HashMap<>();
+        value.put("userId", String.valueOf(userId));
+        value.put("voucherId", String.valueOf(voucherId));
+        value.put("id", String.valueOf(orderId));
+        return StreamRecords.newRecord().in(STREAM).withId(RecordId.of(id)).ofMap(value);
+    }
+
+    private static List<Long> ids(List<VoucherOrder> orders) {
+        List<Long> ids = new ArrayList<>();
+        for (VoucherOrder order : orders) {
+            ids.add(order.getId());
+        }
+        return ids;
+    }
+}
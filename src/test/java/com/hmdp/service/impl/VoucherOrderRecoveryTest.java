@@ -0,0 +1,128 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * pending-list恢复：空闲太久的消息XCLAIM过来重新落库再ACK，投递次数超限的转入死信
+ */
+@SuppressWarnings("unchecked")
+public class VoucherOrderRecoveryTest {
+    private static final String STREAM = "stream.orders";
+
+    private VoucherOrderServiceImpl service;
+    private StringRedisTemplate stringRedisTemplate;
+    private StreamOperations<String, Object, Object> streamOps;
+    private RedisStreamCommands streamCommands;
+    private IVoucherOrderService proxy;
+
+    @Before
+    public void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        streamOps = mock(StreamOperations.class);
+        when(stringRedisTemplate.opsForStream()).thenReturn(streamOps);
+        streamCommands = mock(RedisStreamCommands.class);
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connection.streamCommands()).thenReturn(streamCommands);
+        // execute(callback) 用模拟的连接跑回调
+        when(stringRedisTemplate.execute(any(RedisCallback.class)))
+                .thenAnswer(invocation -> ((RedisCallback<Object>) invocation.getArgument(0)).doInRedis(connection));
+        proxy = mock(IVoucherOrderService.class);
+        when(proxy.CreateVoucherOrder_v2(any())).thenReturn(Result.ok());
+
+        service = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(service, "proxy", proxy);
+        ReflectionTestUtils.setField(service, "claimIdleMs", 30000L);
+        ReflectionTestUtils.setField(service, "maxDeliveries", 5L);
+        ReflectionTestUtils.setField(service, "statusTtlSeconds", 600L);
+    }
+
+    @Test
+    public void stalePendingMessageIsClaimedAndPersisted() {
+        RecordId id = RecordId.of("1-0");
+        pending(new PendingMessage(id, Consumer.from("g1", "dead-node"), Duration.ofMinutes(5), 1));
+        Map<byte[], byte[]> body = new LinkedHashMap<>();
+        body.put(bytes("userId"), bytes("7"));
+        body.put(bytes("voucherId"), bytes("2"));
+        body.put(bytes("id"), bytes("123"));
+        when(streamCommands.xClaim(any(byte[].class), eq("g1"), eq("c1"), any(RedisStreamCommands.XClaimOptions.class)))
+                .thenReturn(Collections.singletonList(StreamRecords.newRecord().in(bytes(STREAM)).withId(id).ofBytes(body)));
+
+        ReflectionTestUtils.invokeMethod(service, "recoverPending", STREAM, "c1");
+
+        ArgumentCaptor<RedisStreamCommands.XClaimOptions> options = ArgumentCaptor.forClass(RedisStreamCommands.XClaimOptions.class);
+        verify(streamCommands).xClaim(aryEq(bytes(STREAM)), eq("g1"), eq("c1"), options.capture());
+        assertEquals(Duration.ofMillis(30000), options.getValue().getMinIdleTime());
+        assertEquals(Collections.singletonList(id), options.getValue().getIds());
+
+        ArgumentCaptor<VoucherOrder> order = ArgumentCaptor.forClass(VoucherOrder.class);
+        verify(proxy).CreateVoucherOrder_v2(order.capture());
+        assertEquals(123L, order.getValue().getId().longValue());
+        assertEquals(7L, order.getValue().getUserId().longValue());
+        assertEquals(2L, order.getValue().getVoucherId().longValue());
+        verify(streamOps).acknowledge(STREAM, "g1", id);
+    }
+
+    @Test
+    public void recentlyDeliveredMessageIsLeftAlone() {
+        pending(new PendingMessage(RecordId.of("1-0"), Consumer.from("g1", "c2"), Duration.ofSeconds(1), 1));
+
+        ReflectionTestUtils.invokeMethod(service, "recoverPending", STREAM, "c1");
+
+        verifyNoInteractions(streamCommands, proxy);
+        verify(streamOps, never()).acknowledge(anyString(), anyString(), any(RecordId[].class));
+    }
+
+    @Test
+    public void messageOverDeliveryLimitGoesToDeadLetter() {
+        RecordId id = RecordId.of("1-0");
+        pending(new PendingMessage(id, Consumer.from("g1", "c2"), Duration.ofMinutes(5), 5));
+        Map<Object, Object> value = new HashMap<>();
+        value.put("userId", "7");
+        value.put("voucherId", "2");
+        value.put("id", "123");
+        when(streamOps.range(eq(STREAM), any(Range.class)))
+                .thenReturn(Collections.singletonList(StreamRecords.newRecord().in(STREAM).withId(id).ofMap(value)));
+
+        ReflectionTestUtils.invokeMethod(service, "recoverPending", STREAM, "c1");
+
+        ArgumentCaptor<Map<Object, Object>> dead = ArgumentCaptor.forClass(Map.class);
+        verify(streamOps).add(eq("stream.orders.dlq"), dead.capture());
+        assertEquals("123", dead.getValue().get("id"));
+        assertEquals(STREAM, dead.getValue().get("source"));
+        assertEquals("1-0", dead.getValue().get("sourceId"));
+        verify(streamOps).acknowledge(STREAM, "g1", id);
+        verifyNoInteractions(streamCommands, proxy);
+    }
+
+    private void pending(PendingMessage message) {
+        when(streamOps.pending(eq(STREAM), eq("g1"), any(Range.class), eq(100L)))
+                .thenReturn(new PendingMessages("g1", Collections.singletonList(message)));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,151 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.OrderRingBuffer;
+import com.hmdp.utils.RedisIDWorker;
+import com.hmdp.utils.UserHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 本地队列版秒杀：用第四版脚本校验扣减（不发消息），队列满了用回滚脚本撤销
+ */
+public class VoucherOrderSeckillV2Test {
+    private static final long VOUCHER_ID = 2L;
+    private static final long USER_ID = 7L;
+    private static final long TIMESTAMP = 1000L;
+
+    private final RedisScript<?> seckillScript =
+            (RedisScript<?>) ReflectionTestUtils.getField(VoucherOrderServiceImpl.class, "SECKILL_SCRIPT_V4");
+    private final RedisScript<?> rollbackScript =
+            (RedisScript<?>) ReflectionTestUtils.getField(VoucherOrderServiceImpl.class, "SECKILL_ROLLBACK_SCRIPT");
+
+    private VoucherOrderServiceImpl service;
+    private ScriptRecorder redis;
+    private OrderRingBuffer ring;
+
+    @Before
+    public void setUp() {
+        redis = new ScriptRecorder();
+        RedisIDWorker redisIDWorker = mock(RedisIDWorker.class);
+        when(redisIDWorker.timestamp(any())).thenReturn(TIMESTAMP);
+        when(redisIDWorker.counterKey(anyString(), any())).thenReturn("inc:order:2026:10:17");
+        ring = new OrderRingBuffer(1, false, OrderRingBuffer.WaitStrategy.BUSY_SPIN);
+
+        service = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(service, "redisIDWorker", redisIDWorker);
+        ReflectionTestUtils.setField(service, "orderRing", ring);
+        ReflectionTestUtils.setField(service, "streamMaxLen", 1000000L);
+        ReflectionTestUtils.setField(service, "statusTtlSeconds", 600L);
+        ReflectionTestUtils.setField(service, "soldOutTtlMs", 60000L);
+        UserDTO user = new UserDTO();
+        user.setId(USER_ID);
+        UserHolder.saveUser(user);
+    }
+
+    @After
+    public void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    public void queuedOrderUsesSeckillScriptWithoutStream() throws InterruptedException {
+        redis.result = 5L;
+
+        Result result = service.seckillVoucher_v2(VOUCHER_ID);
+
+        assertTrue(result.getSuccess());
+        long orderId = RedisIDWorker.compose(TIMESTAMP, 5);
+        assertEquals(orderId, result.getData());
+        assertEquals(1, redis.calls.size());
+        assertSame(seckillScript, redis.calls.get(0).script);
+        // 流的key是空串：脚本不发Stream消息
+        assertEquals(Arrays.asList("2", "7", "", "1000", "inc:order:2026:10:17", "1000000", "600"),
+                redis.calls.get(0).args);
+        long[] slot = new long[3];
+        assertEquals(1, ring.drain((id, userId, voucherId) -> {
+            slot[0] = id;
+            slot[1] = userId;
+            slot[2] = voucherId;
+        }, 10, 0, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new long[]{orderId, USER_ID, VOUCHER_ID}, slot);
+    }
+
+    @Test
+    public void queueFullRollsBack() {
+        assertTrue(ring.tryPublish(1, 1, 1));
+        redis.result = 5L;
+
+        Result result = service.seckillVoucher_v2(VOUCHER_ID);
+
+        assertFalse(result.getSuccess());
+        assertEquals(2, redis.calls.size());
+        assertSame(rollbackScript, redis.calls.get(1).script);
+        assertEquals(Arrays.asList("2", "7", String.valueOf(RedisIDWorker.compose(TIMESTAMP, 5))),
+                redis.calls.get(1).args);
+    }
+
+    @Test
+    public void soldOutIsBroadcastAndNotRolledBack() {
+        redis.result = -2L;
+
+        Result result = service.seckillVoucher_v2(VOUCHER_ID);
+
+        assertFalse(result.getSuccess());
+        assertEquals(1, redis.calls.size());
+        assertEquals(Arrays.asList("2"), redis.published);
+        // 本地已经标记售罄：不再访问Redis
+        assertFalse(service.seckillVoucher_v2(VOUCHER_ID).getSuccess());
+        assertEquals(1, redis.calls.size());
+    }
+
+    // 记下执行了哪个脚本、什么参数，返回预设的结果
+    private static class ScriptRecorder extends StringRedisTemplate {
+        private final List<Call> calls = new ArrayList<>();
+        private final List<String> published = new ArrayList<>();
+        private Long result;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+            List<String> values = new ArrayList<>();
+            for (Object arg : args) {
+                values.add(arg.toString());
+            }
+            calls.add(new Call(script, values));
+            return calls.size() == 1 ? (T) result : (T) Long.valueOf(1);
+        }
+
+        @Override
+        public void convertAndSend(String channel, Object message) {
+            published.add(message.toString());
+        }
+    }
+
+    private static class Call {
+        private final RedisScript<?> script;
+        private final List<String> args;
+
+        Call(RedisScript<?> script, List<String> args) {
+            this.script = script;
+            this.args = args;
+        }
+    }
+}
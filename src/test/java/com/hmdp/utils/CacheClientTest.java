@@ -0,0 +1,296 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * 缓存工具：单飞、等重建广播、加载失败、L1上限、XFetch提前刷新、TTL抖动、逻辑过期的旧格式
+ */
+public class CacheClientTest {
+    private static final String PREFIX = "cache:shop:";
+    private static final String KEY = PREFIX + 1;
+
+    private CacheClient cacheClient;
+    private StringRedisTemplate redis;
+    private ValueOperations<String, String> valueOps;
+    private SimpleMeterRegistry meterRegistry;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        redis = mock(StringRedisTemplate.class);
+        valueOps = mock(ValueOperations.class);
+        when(redis.opsForValue()).thenReturn(valueOps);
+        meterRegistry = new SimpleMeterRegistry();
+        cacheClient = new CacheClient();
+        ReflectionTestUtils.setField(cacheClient, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(cacheClient, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(cacheClient, "l1MaxSize", 100);
+        ReflectionTestUtils.setField(cacheClient, "l1TtlMs", 60000L);
+        ReflectionTestUtils.setField(cacheClient, "ttlJitter", 0.2);
+        ReflectionTestUtils.setField(cacheClient, "xfetchBeta", 1.0);
+        cacheClient.register(PREFIX, "shop", 30, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void coldLogicalKeyLoadsOnce() throws Exception {
+        int threads = 8;
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Shop>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> cacheClient.get(PREFIX, 1L, Shop.class, id -> {
+                    loads.incrementAndGet();
+                    await(release);
+                    return shop(id);
+                }, CachePolicy.LOGICAL_EXPIRE)));
+            }
+            // 其余线程都在等leader了再放行
+            awaitCount("wait", threads - 1);
+            release.countDown();
+            for (Future<Shop> result : results) {
+                assertEquals("shop-1", result.get(5, TimeUnit.SECONDS).getName());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        verify(valueOps, times(1)).set(eq(KEY), anyString());
+    }
+
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        when(valueOps.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        int threads = 8;
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Shop>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> cacheClient.get(PREFIX, 1L, Shop.class, id -> {
+                    loads.incrementAndGet();
+                    await(release);
+                    return shop(id);
+                }, CachePolicy.MUTEX)));
+            }
+            awaitCount("wait", threads - 1);
+            release.countDown();
+            for (Future<Shop> result : results) {
+                assertEquals("shop-1", result.get(5, TimeUnit.SECONDS).getName());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        // 只有leader抢锁、写缓存、广播
+        verify(valueOps, times(1)).setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class));
+        verify(valueOps, times(1)).set(eq(KEY), anyString(), anyLong(), eq(TimeUnit.MILLISECONDS));
+        verify(redis, times(1)).convertAndSend(RedisConstants.CACHE_REBUILT_CHANNEL, KEY);
+    }
+
+    @Test
+    public void waiterWakesOnRebuiltBroadcast() throws Exception {
+        // 别的节点拿着锁
+        when(valueOps.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(false);
+        AtomicInteger loads = new AtomicInteger();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<Shop> result = pool.submit(() -> cacheClient.get(PREFIX, 1L, Shop.class, id -> {
+                loads.incrementAndGet();
+                return shop(id);
+            }, CachePolicy.MUTEX));
+            Map<?, ?> rebuilt = (Map<?, ?>) ReflectionTestUtils.getField(cacheClient, "rebuilt");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!rebuilt.containsKey(KEY)) {
+                assertTrue("等待超时", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            // 别的节点重建完：写了缓存再广播
+            when(valueOps.get(KEY)).thenReturn(JSONUtil.toJsonStr(shop(1L)));
+            long start = System.nanoTime();
+            ReflectionTestUtils.invokeMethod(cacheClient, "onRebuilt", KEY);
+            assertEquals("shop-1", result.get(5, TimeUnit.SECONDS).getName());
+            // 广播叫醒的，不是等满 REBUILD_WAIT_MS
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 400);
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(0, loads.get());
+        assertEquals(1, meterRegistry.counter("cache.gets", "keyspace", "shop", "result", "wait").count(), 0);
+    }
+
+    @Test
+    public void loaderFailureReachesWaiters() throws Exception {
+        when(valueOps.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        int threads = 4;
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Shop>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> cacheClient.get(PREFIX, 1L, Shop.class, id -> {
+                    await(release);
+                    throw new IllegalStateException("db down");
+                }, CachePolicy.MUTEX)));
+            }
+            awaitCount("wait", threads - 1);
+            release.countDown();
+            for (Future<Shop> result : results) {
+                try {
+                    // 远小于等leader的上限（REBUILD_WAIT_MS * REBUILD_WAITS）
+                    result.get(2, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException);
+                    assertEquals("db down", e.getCause().getMessage());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        // 锁放掉了，loading也清掉了，下一次能重新加载
+        verify(redis).delete(RedisConstants.CACHE_LOCK_KEY + KEY);
+        assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(cacheClient, "loading")).isEmpty());
+        verify(valueOps, never()).set(eq(KEY), anyString(), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void l1StaysBounded() {
+        cacheClient.enableL1(PREFIX);
+        when(valueOps.get(anyString())).thenReturn(JSONUtil.toJsonStr(shop(1L)));
+        Map<?, ?> l1 = (Map<?, ?>) ReflectionTestUtils.getField(cacheClient, "l1");
+        for (long id = 0; id < 1000; id++) {
+            cacheClient.get(PREFIX, id, Shop.class, this::shop, CachePolicy.PASS_THROUGH);
+            assertTrue(l1.size() <= 100);
+        }
+    }
+
+    @Test
+    public void xfetchRefreshesEarlyInBackground() {
+        cacheClient.enableEarlyRefresh(PREFIX);
+        // 查数据库很慢，剩余TTL只有1ms：一定提前刷新
+        setLoadMillis(1e6);
+        when(redis.executePipelined(any(RedisCallback.class))).thenReturn(Arrays.asList(JSONUtil.toJsonStr(shop(1L)), 1L));
+        when(valueOps.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        Shop fresh = shop(1L);
+        fresh.setName("fresh");
+
+        Shop value = cacheClient.get(PREFIX, 1L, Shop.class, id -> fresh, CachePolicy.MUTEX);
+
+        // 读的人拿缓存里的值，后台重建并广播
+        assertEquals("shop-1", value.getName());
+        verify(valueOps, timeout(2000)).set(eq(KEY), argThat(json -> json.contains("fresh")), anyLong(), eq(TimeUnit.MILLISECONDS));
+        verify(redis, timeout(2000)).convertAndSend(RedisConstants.CACHE_REBUILT_CHANNEL, KEY);
+        verify(redis, timeout(2000)).delete(RedisConstants.CACHE_LOCK_KEY + KEY);
+        assertEquals(1, meterRegistry.counter("cache.refresh", "keyspace", "shop", "type", "early").count(), 0);
+    }
+
+    @Test
+    public void noEarlyRefreshWithPlentyOfTtl() {
+        cacheClient.enableEarlyRefresh(PREFIX);
+        setLoadMillis(1);
+        when(redis.executePipelined(any(RedisCallback.class)))
+                .thenReturn(Arrays.asList(JSONUtil.toJsonStr(shop(1L)), TimeUnit.MINUTES.toMillis(30)));
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("shop-1", cacheClient.get(PREFIX, 1L, Shop.class, this::shop, CachePolicy.MUTEX).getName());
+        }
+        verify(valueOps, never()).setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void ttlIsJittered() {
+        for (int i = 0; i < 50; i++) {
+            cacheClient.set(PREFIX, 1L, shop(1L));
+        }
+        ArgumentCaptor<Long> ttls = ArgumentCaptor.forClass(Long.class);
+        verify(valueOps, times(50)).set(eq(KEY), anyString(), ttls.capture(), eq(TimeUnit.MILLISECONDS));
+        long base = TimeUnit.MINUTES.toMillis(30);
+        for (long ttl : ttls.getAllValues()) {
+            assertTrue(ttl >= base && ttl <= base * 1.2);
+        }
+        // 不会一起过期
+        assertTrue(new HashSet<>(ttls.getAllValues()).size() > 1);
+    }
+
+    @Test
+    public void expiredOldFormatIsReadAndRewritten() {
+        // 旧版本：data直接是对象
+        RedisData old = new RedisData();
+        old.setData(shop(1L));
+        old.setExpireTime(LocalDateTime.now().minusMinutes(1));
+        when(valueOps.get(KEY)).thenReturn(JSONUtil.toJsonStr(old));
+        when(valueOps.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        Shop fresh = shop(1L);
+        fresh.setName("fresh");
+
+        Shop value = cacheClient.get(PREFIX, 1L, Shop.class, id -> fresh, CachePolicy.LOGICAL_EXPIRE);
+
+        // 先返回旧值，后台按新格式（data是序列化好的字符串）重写
+        assertEquals("shop-1", value.getName());
+        verify(valueOps, timeout(2000)).set(eq(KEY), argThat(json -> {
+            JSONObject written = JSONUtil.parseObj(json);
+            return written.get("data") instanceof String
+                    && "fresh".equals(JSONUtil.parseObj(written.getStr("data")).getStr("name"));
+        }));
+        verify(redis, timeout(2000)).delete(RedisConstants.CACHE_LOCK_KEY + KEY);
+    }
+
+    private void setLoadMillis(double millis) {
+        Object keyspace = ((Map<?, ?>) ReflectionTestUtils.getField(cacheClient, "keyspaces")).get(PREFIX);
+        ReflectionTestUtils.setField(keyspace, "loadMillis", millis);
+    }
+
+    private void awaitCount(String result, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (meterRegistry.counter("cache.gets", "keyspace", "shop", "result", result).count() < count) {
+            assertTrue("等待超时", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Shop shop(Long id) {
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setName("shop-" + id);
+        return shop;
+    }
+}
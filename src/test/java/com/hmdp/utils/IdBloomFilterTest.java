@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * 布隆过滤器本地位图：和Redis SETBIT的位序一致，加载期间的新增不丢；本地说不存在时到Redis确认
+ */
+public class IdBloomFilterTest {
+    private static final long BITS = 1024;
+
+    @Test
+    public void toBytesMatchesSetbitLayout() {
+        IdBloomFilter.Filter filter = new IdBloomFilter.Filter(BITS);
+        long[] offsets = {0, 7, 8, 63, 64, 100, BITS - 1};
+        filter.set(offsets);
+
+        // SETBIT key j 1：第 j / 8 个字节，从高位数第 j % 8 位
+        byte[] expected = new byte[(int) (BITS / 8)];
+        for (long j : offsets) {
+            expected[(int) (j / 8)] |= (byte) (1 << (7 - j % 8));
+        }
+        byte[] bytes = filter.toBytes();
+        assertEquals(BITS / 8, bytes.length);
+        assertArrayEquals(expected, bytes);
+        assertEquals((byte) 0x81, bytes[0]);
+        assertEquals((byte) 0x80, bytes[1]);
+        assertEquals((byte) 0x01, bytes[(int) (BITS / 8) - 1]);
+    }
+
+    @Test
+    public void loadRoundTrip() {
+        IdBloomFilter.Filter filter = new IdBloomFilter.Filter(BITS);
+        long[] offsets = {1, 9, 62, 65, 511, 1000};
+        filter.set(offsets);
+
+        IdBloomFilter.Filter loaded = new IdBloomFilter.Filter(BITS);
+        loaded.set(new long[]{3});
+        loaded.load(filter.toBytes());
+        assertArrayEquals(filter.toBytes(), loaded.toBytes());
+        for (long offset : offsets) {
+            assertTrue(loaded.get(new long[]{offset}));
+        }
+        // 整个替换：加载前本地有、Redis里没有的位去掉
+        assertFalse(loaded.get(new long[]{3}));
+        assertFalse(loaded.get(new long[]{0}));
+    }
+
+    @Test
+    public void addWhileLoadingSurvives() {
+        IdBloomFilter.Filter filter = new IdBloomFilter.Filter(BITS);
+        // 开始加载之后（GET已经发出去）来了一个新增
+        ReflectionTestUtils.setField(filter, "loading", true);
+        filter.add(42L, new long[]{5, 700});
+        filter.load(new byte[(int) (BITS / 8)]);
+        assertFalse(filter.get(new long[]{5, 700}));
+        filter.loaded();
+        assertTrue(filter.get(new long[]{5, 700}));
+    }
+
+    @Test
+    public void localMissConfirmedByRedisBitmap() {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        IdBloomFilter bloom = readyBloom(redis);
+        // 别的节点新增了，广播丢了：Redis里的位都在
+        when(redis.executePipelined(any(RedisCallback.class))).thenReturn(Arrays.asList(true, true, true, true, true, true, true));
+
+        assertTrue(bloom.mightContain(IdBloomFilter.SHOP, 42L));
+        // 补到了本地，之后不再访问Redis
+        assertTrue(bloom.mightContain(IdBloomFilter.SHOP, 42L));
+        verify(redis, times(1)).executePipelined(any(RedisCallback.class));
+    }
+
+    @Test
+    public void missingInRedisIsRejected() {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        IdBloomFilter bloom = readyBloom(redis);
+        when(redis.executePipelined(any(RedisCallback.class))).thenReturn(Arrays.asList(true, false, true, true, true, true, true));
+
+        assertFalse(bloom.mightContain(IdBloomFilter.SHOP, 42L));
+        assertFalse(bloom.mightContain(IdBloomFilter.SHOP, 42L));
+        verify(redis, times(2)).executePipelined(any(RedisCallback.class));
+    }
+
+    @Test
+    public void redisFailureLetsThrough() {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        IdBloomFilter bloom = readyBloom(redis);
+        when(redis.executePipelined(any(RedisCallback.class))).thenThrow(new IllegalStateException("down"));
+
+        assertTrue(bloom.mightContain(IdBloomFilter.SHOP, 42L));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static IdBloomFilter readyBloom(StringRedisTemplate redis) {
+        IdBloomFilter bloom = new IdBloomFilter();
+        ReflectionTestUtils.setField(bloom, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(bloom, "enabled", true);
+        ReflectionTestUtils.setField(bloom, "bits", BITS);
+        ReflectionTestUtils.setField(bloom, "hashes", 7);
+        IdBloomFilter.Filter filter = new IdBloomFilter.Filter(BITS);
+        ReflectionTestUtils.setField(filter, "ready", true);
+        ((Map<String, IdBloomFilter.Filter>) ReflectionTestUtils.getField(bloom, "filters")).put(IdBloomFilter.SHOP, filter);
+        return bloom;
+    }
+}
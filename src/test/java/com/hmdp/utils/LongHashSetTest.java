@@ -0,0 +1,77 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * long集合：增删、扩容，和HashSet对比
+ */
+public class LongHashSetTest {
+
+    @Test
+    public void addRemove() {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.add(1));
+        assertFalse(set.add(1));
+        assertTrue(set.add(2));
+        assertTrue(set.contains(1));
+        assertEquals(2, set.size());
+
+        assertTrue(set.remove(1));
+        assertFalse(set.remove(1));
+        assertFalse(set.contains(1));
+        assertTrue(set.contains(2));
+        assertEquals(1, set.size());
+        // 删掉之后可以再加
+        assertTrue(set.add(1));
+        assertEquals(2, set.size());
+
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroIsReserved() {
+        new LongHashSet().add(0);
+    }
+
+    @Test
+    public void resize() {
+        LongHashSet set = new LongHashSet();
+        // 初始16个槽，装到一半就扩容，扩容后原来的都还在
+        for (long i = 1; i <= 10000; i++) {
+            assertTrue(set.add(i));
+        }
+        assertEquals(10000, set.size());
+        for (long i = 1; i <= 10000; i++) {
+            assertTrue(set.contains(i));
+        }
+        assertFalse(set.contains(10001));
+    }
+
+    @Test
+    public void randomAgainstHashSet() {
+        // 小表、多冲突：删除要把同一条探测链上的元素挪回去，否则后面的会查不到
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            long value = 1 + random.nextInt(500);
+            if (random.nextBoolean()) {
+                assertEquals(expected.add(value), set.add(value));
+            } else {
+                assertEquals(expected.remove(value), set.remove(value));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+        for (long value = 1; value <= 500; value++) {
+            assertEquals(expected.contains(value), set.contains(value));
+        }
+    }
+}
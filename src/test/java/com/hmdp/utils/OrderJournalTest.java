@@ -0,0 +1,136 @@
+package com.hmdp.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 订单日志：跨文件读写和回放进度、CRC校验、最后一条没写完时的恢复
+ */
+public class OrderJournalTest {
+    // 一条记录32字节，一个文件放3条，尾部留4字节空隙
+    private static final long SEGMENT_BYTES = 100;
+
+    private File dir;
+    private OrderJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("order-journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void appendReadCommitAcrossSegments() throws IOException {
+        open();
+        for (long i = 1; i <= 7; i++) {
+            journal.append(i, i * 10, i * 100);
+        }
+        List<long[]> records = journal.read(10);
+        assertEquals(7, records.size());
+        for (int i = 0; i < 7; i++) {
+            assertArrayEquals(new long[]{i + 1, (i + 1) * 10, (i + 1) * 100}, records.get(i));
+        }
+
+        journal.commit(5);
+        assertEquals(2, journal.pending());
+        // 第一个文件已经回放完：删掉
+        assertFalse(segment(0).exists());
+        assertTrue(segment(SEGMENT_BYTES).exists());
+        records = journal.read(10);
+        assertEquals(2, records.size());
+        assertEquals(6, records.get(0)[0]);
+        assertEquals(7, records.get(1)[0]);
+
+        // 重启：从checkpoint接着读，新追加的接在后面
+        close();
+        open();
+        journal.append(8, 80, 800);
+        records = journal.read(10);
+        assertEquals(3, records.size());
+        assertEquals(8, records.get(2)[0]);
+    }
+
+    @Test
+    public void recoverFromTornLastRecord() throws IOException {
+        open();
+        for (long i = 1; i <= 2; i++) {
+            journal.append(i, i * 10, i * 100);
+        }
+        close();
+        // 第3条只写了长度和一半数据就崩了：CRC对不上
+        try (RandomAccessFile file = new RandomAccessFile(segment(0), "rw")) {
+            file.seek(64);
+            file.writeInt(24);
+            file.writeInt(0);
+            file.writeLong(3);
+        }
+
+        open();
+        assertEquals(2, journal.read(10).size());
+        assertEquals(2, journal.pending());
+        // 没写完的那条被覆盖
+        journal.append(3, 30, 300);
+        close();
+        open();
+        List<long[]> records = journal.read(10);
+        assertEquals(3, records.size());
+        assertArrayEquals(new long[]{3, 30, 300}, records.get(2));
+    }
+
+    @Test
+    public void corruptedRecordStopsRead() throws IOException {
+        open();
+        for (long i = 1; i <= 3; i++) {
+            journal.append(i, i * 10, i * 100);
+        }
+        // 第2条的userId被改了一个字节：CRC不对，读到第1条为止
+        try (RandomAccessFile file = new RandomAccessFile(segment(0), "rw")) {
+            file.seek(32 + 16);
+            file.writeByte(0x7f);
+        }
+        List<long[]> records = journal.read(10);
+        assertEquals(1, records.size());
+        assertEquals(1, records.get(0)[0]);
+    }
+
+    private void open() {
+        journal = new OrderJournal();
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "dir", dir.getPath());
+        ReflectionTestUtils.setField(journal, "segmentBytes", SEGMENT_BYTES);
+        ReflectionTestUtils.setField(journal, "flushIntervalMs", 1L);
+        ReflectionTestUtils.invokeMethod(journal, "init");
+    }
+
+    private void close() {
+        if (journal != null) {
+            ReflectionTestUtils.invokeMethod(journal, "destroy");
+            journal = null;
+        }
+    }
+
+    private File segment(long start) {
+        return new File(dir, String.format("orders-%020d.wal", start));
+    }
+}
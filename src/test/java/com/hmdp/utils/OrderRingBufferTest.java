@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * 环形队列：绕圈后的序号和槽位、多生产者的发布标记
+ */
+public class OrderRingBufferTest {
+
+    @Test
+    public void wrapAround() throws InterruptedException {
+        OrderRingBuffer ring = new OrderRingBuffer(3, false, OrderRingBuffer.WaitStrategy.BUSY_SPIN);
+        assertEquals(4, ring.capacity());
+        for (long i = 1; i <= 4; i++) {
+            assertTrue(ring.tryPublish(i, i * 10, i * 100));
+        }
+        // 满了：不能覆盖还没消费的槽
+        assertFalse(ring.tryPublish(5, 50, 500));
+
+        List<Long> orderIds = new ArrayList<>();
+        assertEquals(2, ring.drain((orderId, userId, voucherId) -> orderIds.add(orderId), 2, 0, TimeUnit.MILLISECONDS));
+        // 消费了两个：可以再写两个，落在第一圈的0、1号槽
+        assertTrue(ring.tryPublish(5, 50, 500));
+        assertTrue(ring.tryPublish(6, 60, 600));
+        assertFalse(ring.tryPublish(7, 70, 700));
+
+        List<long[]> slots = new ArrayList<>();
+        assertEquals(4, ring.drain((orderId, userId, voucherId) -> slots.add(new long[]{orderId, userId, voucherId}),
+                10, 0, TimeUnit.MILLISECONDS));
+        for (long[] slot : slots) {
+            orderIds.add(slot[0]);
+            assertEquals(slot[0] * 10, slot[1]);
+            assertEquals(slot[0] * 100, slot[2]);
+        }
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L), orderIds);
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.drain((orderId, userId, voucherId) -> fail(), 10, 1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void claimedSlotIsNotVisibleUntilPublished() throws InterruptedException {
+        OrderRingBuffer ring = new OrderRingBuffer(2, true, OrderRingBuffer.WaitStrategy.BUSY_SPIN);
+        assertTrue(ring.tryPublish(1, 1, 1));
+        assertTrue(ring.tryPublish(2, 2, 2));
+        assertEquals(2, ring.drain((orderId, userId, voucherId) -> {
+        }, 10, 0, TimeUnit.MILLISECONDS));
+
+        // 生产者抢到了序号2（第二圈的0号槽）还没写完：槽里还是上一圈的圈数，不能被取走
+        AtomicLong claimed = (AtomicLong) ReflectionTestUtils.getField(ring, "claimed");
+        claimed.incrementAndGet();
+        assertEquals(0, ring.drain((orderId, userId, voucherId) -> fail(), 10, 1, TimeUnit.MILLISECONDS));
+
+        // 后面的序号先写完也要等前面的
+        assertTrue(ring.tryPublish(4, 4, 4));
+        assertEquals(0, ring.drain((orderId, userId, voucherId) -> fail(), 10, 1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void multiProducer() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 10000;
+        OrderRingBuffer ring = new OrderRingBuffer(64, true, OrderRingBuffer.WaitStrategy.YIELDING);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < producers; p++) {
+            long producer = p;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long i = 1; i <= perProducer; ) {
+                    if (ring.tryPublish(producer * perProducer + i, producer, i)) {
+                        i++;
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+        start.countDown();
+
+        long[] last = new long[producers];
+        boolean[] seen = new boolean[producers * perProducer + 1];
+        int total = 0;
+        while (total < producers * perProducer) {
+            int n = ring.drain((orderId, userId, voucherId) -> {
+                assertFalse(seen[(int) orderId]);
+                seen[(int) orderId] = true;
+                // 同一个生产者的订单按入队顺序取出
+                assertEquals(last[(int) userId] + 1, voucherId);
+                last[(int) userId] = voucherId;
+            }, 16, 5, TimeUnit.SECONDS);
+            assertTrue(n > 0);
+            total += n;
+        }
+        assertEquals(0, ring.size());
+    }
+}
@@ -0,0 +1,83 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 号段模式：多线程发号不重复，每个线程拿到的ID递增（预取的号段晚到也不会插到同步加载的号段后面）
+ */
+public class RedisIDWorkerTest {
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 20000;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void segmentIdsUniqueAndMonotonic() throws Exception {
+        // 模拟Redis INCRBY；预取线程的INCRBY慢一点，让号段先用完、同步加载抢在预取前面
+        ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+        ValueOperations<String, String> valueOps = mock(ValueOperations.class);
+        when(valueOps.increment(anyString(), anyLong())).thenAnswer(invocation -> {
+            if ("id-segment-loader".equals(Thread.currentThread().getName())) {
+                Thread.sleep(1);
+            }
+            long delta = invocation.getArgument(1);
+            return counters.computeIfAbsent(invocation.getArgument(0), k -> new AtomicLong()).addAndGet(delta);
+        });
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        when(redis.opsForValue()).thenReturn(valueOps);
+        RedisIDWorker redisIDWorker = new RedisIDWorker();
+        ReflectionTestUtils.setField(redisIDWorker, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(redisIDWorker, "segmentSize", 10);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<long[]>> results = new ArrayList<>();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                results.add(pool.submit(() -> {
+                    long[] ids = new long[IDS_PER_THREAD];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = redisIDWorker.nextId("order");
+                    }
+                    return ids;
+                }));
+            }
+            Set<Long> all = new HashSet<>();
+            for (Future<long[]> result : results) {
+                long[] ids = result.get(60, TimeUnit.SECONDS);
+                for (int i = 0; i < ids.length; i++) {
+                    // 序列号部分在同一天里递增（时间戳部分只会变大）
+                    if (i > 0) {
+                        assertTrue("第" + i + "个ID没有递增", sequence(ids[i]) > sequence(ids[i - 1]));
+                    }
+                    assertTrue("ID重复: " + ids[i], all.add(sequence(ids[i])));
+                }
+            }
+            assertEquals(THREADS * IDS_PER_THREAD, all.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static long sequence(long id) {
+        return id & ((1L << RedisIDWorker.COUNT_BIT) - 1);
+    }
+}